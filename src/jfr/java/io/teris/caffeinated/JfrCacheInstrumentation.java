@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated;
+
+import java.util.concurrent.CompletionException;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * Emits Java Flight Recorder events for key mapping, value loading, evictions, alias churn
+ * and dropped write-behind deletes. Events are only allocated and timed while enabled in a
+ * recording, so the overhead is negligible otherwise. Only ever loaded via
+ * {@code CacheInstrumentation.create} on JDKs providing JFR.
+ */
+class JfrCacheInstrumentation implements CacheInstrumentation {
+
+	static final String CATEGORY = "Caffeinated";
+
+	static final String SUCCESS = "success";
+
+	@Name("io.teris.caffeinated.KeyMapping")
+	@Label("Key Mapping")
+	@Description("Execution of a key mapper resolving a key to its derived key")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	static class KeyMappingEvent extends Event {
+
+		@Label("Outcome")
+		String outcome;
+	}
+
+	@Name("io.teris.caffeinated.ValueLoading")
+	@Label("Value Loading")
+	@Description("Execution of a value loader loading the value for a derived key")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	static class ValueLoadingEvent extends Event {
+
+		@Label("Outcome")
+		String outcome;
+	}
+
+	@Name("io.teris.caffeinated.Eviction")
+	@Label("Eviction")
+	@Description("Eviction of a value together with all the keys pointing to it")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	static class EvictionEvent extends Event {
+
+		@Label("Removal Cause")
+		String cause;
+
+		@Label("Alias Count")
+		int aliasCount;
+	}
+
+	@Name("io.teris.caffeinated.AliasRegistration")
+	@Label("Alias Registration")
+	@Description("Registration of a key as an alias of a derived key")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	static class AliasRegistrationEvent extends Event {
+	}
+
+	@Name("io.teris.caffeinated.AliasRemoval")
+	@Label("Alias Removal")
+	@Description("Removal of a key alias because retrieving its value failed")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	static class AliasRemovalEvent extends Event {
+
+		@Label("Failure")
+		String failure;
+	}
+
+	@Name("io.teris.caffeinated.WriteBehindDrop")
+	@Label("Write-Behind Drop")
+	@Description("Delete of a removed value dropped because the write-behind buffer is full")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	static class WriteBehindDropEvent extends Event {
+
+		@Label("Removal Cause")
+		String cause;
+	}
+
+	@Nullable
+	@Override
+	public Object keyMappingStarted() {
+		KeyMappingEvent event = new KeyMappingEvent();
+		if (!event.isEnabled()) {
+			return null;
+		}
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public void keyMappingFinished(@Nullable Object token, @Nullable Throwable error) {
+		if (token instanceof KeyMappingEvent) {
+			KeyMappingEvent event = (KeyMappingEvent) token;
+			event.end();
+			if (event.shouldCommit()) {
+				event.outcome = outcome(error);
+				event.commit();
+			}
+		}
+	}
+
+	@Nullable
+	@Override
+	public Object valueLoadingStarted() {
+		ValueLoadingEvent event = new ValueLoadingEvent();
+		if (!event.isEnabled()) {
+			return null;
+		}
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public void valueLoadingFinished(@Nullable Object token, @Nullable Throwable error) {
+		if (token instanceof ValueLoadingEvent) {
+			ValueLoadingEvent event = (ValueLoadingEvent) token;
+			event.end();
+			if (event.shouldCommit()) {
+				event.outcome = outcome(error);
+				event.commit();
+			}
+		}
+	}
+
+	@Override
+	public void evicted(@Nonnull RemovalCause cause, int aliasCount) {
+		EvictionEvent event = new EvictionEvent();
+		if (event.shouldCommit()) {
+			event.cause = cause.name();
+			event.aliasCount = aliasCount;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void aliasRegistered() {
+		AliasRegistrationEvent event = new AliasRegistrationEvent();
+		if (event.shouldCommit()) {
+			event.commit();
+		}
+	}
+
+	@Override
+	public void aliasRemovedOnFailure(@Nonnull Throwable error) {
+		AliasRemovalEvent event = new AliasRemovalEvent();
+		if (event.shouldCommit()) {
+			event.failure = outcome(error);
+			event.commit();
+		}
+	}
+
+	@Override
+	public void writeBehindDeleteDropped(@Nonnull RemovalCause cause) {
+		WriteBehindDropEvent event = new WriteBehindDropEvent();
+		if (event.shouldCommit()) {
+			event.cause = cause.name();
+			event.commit();
+		}
+	}
+
+	private static String outcome(@Nullable Throwable error) {
+		if (error == null) {
+			return SUCCESS;
+		}
+		Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+		return cause.getClass().getName();
+	}
+}
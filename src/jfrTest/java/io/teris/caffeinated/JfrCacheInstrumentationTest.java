@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+
+public class JfrCacheInstrumentationTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void beforeEach() {
+		Assume.assumeTrue("JFR not available", jfrAvailable());
+	}
+
+	@Test
+	public void create_jfrAvailable_jfrInstrumentation() {
+		assertTrue(CacheInstrumentation.create() instanceof JfrCacheInstrumentation);
+	}
+
+	@Test
+	public void get_loadFailsAndEviction_eventsRecorded() throws Exception {
+		Path file = folder.newFile("caffeinated.jfr").toPath();
+		try (Recording recording = new Recording()) {
+			for (String name : new String[]{"KeyMapping", "ValueLoading", "Eviction", "AliasRegistration", "AliasRemoval"}) {
+				recording.enable("io.teris.caffeinated." + name).withThreshold(Duration.ZERO);
+			}
+			recording.start();
+
+			CompletableFuture<Void> removed = new CompletableFuture<>();
+			AsyncMultikeyCache<String, String, Integer> cache = AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder()
+				.maximumSize(0))
+				.removalListener((keys, value, cause) -> removed.complete(null))
+				.buildAsync();
+
+			cache.get("aaa", String::toUpperCase, (key, derivedKey) -> key.length()).get(5, TimeUnit.SECONDS);
+			removed.get(5, TimeUnit.SECONDS);
+			try {
+				cache.get("bbb", String::toUpperCase, (key, derivedKey) -> {
+					throw new IllegalStateException("backend down");
+				}).get(5, TimeUnit.SECONDS);
+			} catch (ExecutionException ex) {
+				// expected
+			}
+
+			recording.stop();
+			recording.dump(file);
+		}
+
+		List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+		List<String> names = events.stream().map(event -> event.getEventType().getName()).collect(Collectors.toList());
+		assertTrue(names.contains("io.teris.caffeinated.Eviction"));
+		assertTrue(names.contains("io.teris.caffeinated.AliasRemoval"));
+		assertEquals(2, names.stream().filter("io.teris.caffeinated.KeyMapping"::equals).count());
+		assertEquals(2, names.stream().filter("io.teris.caffeinated.AliasRegistration"::equals).count());
+		List<String> loadOutcomes = events.stream()
+			.filter(event -> "io.teris.caffeinated.ValueLoading".equals(event.getEventType().getName()))
+			.map(event -> event.getString("outcome"))
+			.sorted()
+			.collect(Collectors.toList());
+		assertEquals(2, loadOutcomes.size());
+		assertEquals("java.lang.IllegalStateException", loadOutcomes.get(0));
+		assertEquals("success", loadOutcomes.get(1));
+	}
+
+	private static boolean jfrAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return (Boolean) Class.forName("jdk.jfr.FlightRecorder").getMethod("isAvailable").invoke(null);
+		} catch (ReflectiveOperationException | LinkageError ex) {
+			return false;
+		}
+	}
+}
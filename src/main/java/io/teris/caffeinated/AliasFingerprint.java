@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated;
+
+import java.security.SecureRandom;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+
+/**
+ * AliasFingerprint is a 128-bit SipHash-2-4 fingerprint of an encoded key used in place
+ * of the key itself when the cache is built to fingerprint its aliases. The hash is keyed
+ * with a random secret generated per cache, so that colliding keys cannot be crafted from
+ * the outside, and two fingerprints are only equal if they stem from the same cache and
+ * all 128 bits match.
+ */
+@Immutable
+public final class AliasFingerprint {
+
+	private final long high;
+
+	private final long low;
+
+	private final Secret secret;
+
+	private AliasFingerprint(long high, long low, Secret secret) {
+		this.high = high;
+		this.low = low;
+		this.secret = secret;
+	}
+
+	/**
+	 * Checks if the encoded key has this fingerprint, e.g. to match keys against the
+	 * fingerprints passed to the removal listener.
+	 *
+	 * @param encodedKey the key encoded with the same encoder as registered on the cache
+	 * @return true if the fingerprint of the encoded key equals this one
+	 */
+	public boolean matches(@Nonnull byte[] encodedKey) {
+		return equals(secret.fingerprint(encodedKey));
+	}
+
+	public long high() {
+		return high;
+	}
+
+	public long low() {
+		return low;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof AliasFingerprint)) {
+			return false;
+		}
+		AliasFingerprint that = (AliasFingerprint) o;
+		return high == that.high && low == that.low && secret == that.secret;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) high;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%016x%016x", high, low);
+	}
+
+	/**
+	 * The 128-bit key of the hash, one per cache.
+	 */
+	static final class Secret {
+
+		private static final SecureRandom RANDOM = new SecureRandom();
+
+		private final long k0;
+
+		private final long k1;
+
+		Secret(long k0, long k1) {
+			this.k0 = k0;
+			this.k1 = k1;
+		}
+
+		static Secret random() {
+			return new Secret(RANDOM.nextLong(), RANDOM.nextLong());
+		}
+
+		@Nonnull
+		AliasFingerprint fingerprint(@Nonnull byte[] encodedKey) {
+			SipHash hash = new SipHash(k0, k1);
+			int blocks = encodedKey.length / 8;
+			for (int i = 0; i < blocks; i++) {
+				hash.compress(getLong(encodedKey, i * 8, 8));
+			}
+			int tail = encodedKey.length & 7;
+			hash.compress(((long) encodedKey.length << 56) | getLong(encodedKey, blocks * 8, tail));
+			long high = hash.finish(0xee, 0);
+			return new AliasFingerprint(high, hash.finish(0, 0xdd), this);
+		}
+
+		private static long getLong(byte[] bytes, int offset, int length) {
+			long res = 0;
+			for (int i = length - 1; i >= 0; i--) {
+				res = (res << 8) | (bytes[offset + i] & 0xff);
+			}
+			return res;
+		}
+	}
+
+	/**
+	 * The state of SipHash-2-4 with the 128-bit output: two compression rounds per message
+	 * word and four finalization rounds per output word.
+	 */
+	private static final class SipHash {
+
+		private long v0;
+
+		private long v1;
+
+		private long v2;
+
+		private long v3;
+
+		SipHash(long k0, long k1) {
+			v0 = k0 ^ 0x736f6d6570736575L;
+			v1 = k1 ^ 0x646f72616e646f6dL ^ 0xee;
+			v2 = k0 ^ 0x6c7967656e657261L;
+			v3 = k1 ^ 0x7465646279746573L;
+		}
+
+		void compress(long m) {
+			v3 ^= m;
+			round();
+			round();
+			v0 ^= m;
+		}
+
+		/**
+		 * Produces the next 64 bits of output after flipping the finalization constants
+		 * into the state: 0xee into v2 for the first and 0xdd into v1 for the second half.
+		 */
+		long finish(int v2Constant, int v1Constant) {
+			v2 ^= v2Constant;
+			v1 ^= v1Constant;
+			for (int i = 0; i < 4; i++) {
+				round();
+			}
+			return v0 ^ v1 ^ v2 ^ v3;
+		}
+
+		private void round() {
+			v0 += v1;
+			v1 = Long.rotateLeft(v1, 13);
+			v1 ^= v0;
+			v0 = Long.rotateLeft(v0, 32);
+			v2 += v3;
+			v3 = Long.rotateLeft(v3, 16);
+			v3 ^= v2;
+			v0 += v3;
+			v3 = Long.rotateLeft(v3, 21);
+			v3 ^= v0;
+			v2 += v1;
+			v1 = Long.rotateLeft(v1, 17);
+			v1 ^= v2;
+			v2 = Long.rotateLeft(v2, 32);
+		}
+	}
+}
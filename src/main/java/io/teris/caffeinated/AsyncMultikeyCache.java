@@ -4,13 +4,20 @@
 
 package io.teris.caffeinated;
 
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.stream.Stream;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
 import javax.annotation.concurrent.ThreadSafe;
 
+import org.reactivestreams.Publisher;
+
 import com.github.benmanes.caffeine.cache.Caffeine;
 
 
@@ -26,14 +33,15 @@ import com.github.benmanes.caffeine.cache.Caffeine;
  * reaction to retrieving a value for this same or a different key.
  * <p>
  * Implementations of this interface are expected to be thread-safe, and can be safely
- * accessed by multiple concurrent threads.
+ * accessed by multiple concurrent threads. Caches holding background resources, such as
+ * a write-behind buffer, release them on {@code close}.
  *
  * @param <K> the type of keys maintained by the cache
  * @param <DK> the type of derived keys used as common denominator to access cached values
  * @param <V> the type of mapped values
  */
 @ThreadSafe
-public interface AsyncMultikeyCache<K, DK, V> {
+public interface AsyncMultikeyCache<K, DK, V> extends AutoCloseable {
 
 	/**
 	 * The default factory method to get an instance of cache builder for constructing instances of
@@ -90,6 +98,38 @@ public interface AsyncMultikeyCache<K, DK, V> {
 	@Nonnull
 	CompletableFuture<V> get(@Nonnull K key);
 
+	/**
+	 * Same as {@code get(key, keyMapper, valueLoader)}, but the returned future is completed
+	 * exceptionally with a {@code TimeoutException} if the value is not available within
+	 * the {@code timeout}. The timeout only applies to this call: the shared in-flight
+	 * mapping and loading continue, so that other callers waiting on the same key or
+	 * derived key and the cache itself receive the value once available. Cancelling the
+	 * returned future does not cancel the shared load either.
+	 *
+	 * @param key the key whose cached value is to be retrieved
+	 * @param keyMapper the mapper from the key to a derived key used to access the cached
+	 *                  values
+	 * @param valueLoader the function to compute the value for the key
+	 * @param timeout the maximum time to wait for the value
+	 * @return a completable future completed asynchronously with a cached value, null if
+	 *         value is missing (or key is null), or completed exceptionally otherwise
+	 */
+	@Nonnull
+	CompletableFuture<V> get(@Nonnull K key, @Nonnull Function<K, DK> keyMapper, @Nonnull BiFunction<K, DK, V> valueLoader, @Nonnull Duration timeout);
+
+	/**
+	 * Same as {@code get(key)}, but the returned future is completed exceptionally with a
+	 * {@code TimeoutException} if the value is not available within the {@code timeout}
+	 * without affecting the shared in-flight mapping and loading.
+	 *
+	 * @param key the key whose cached value is to be retrieved
+	 * @param timeout the maximum time to wait for the value
+	 * @return the completable future completed asynchronously with a cached value, null if
+	 *         value is missing (or key is null), or completed exceptionally otherwise
+	 */
+	@Nonnull
+	CompletableFuture<V> get(@Nonnull K key, @Nonnull Duration timeout);
+
 	/**
 	 * Returns the cached value for the given {@code key} resolving it via the derived key.
 	 * If either the value for the derived key or the derived key for the original key
@@ -122,6 +162,41 @@ public interface AsyncMultikeyCache<K, DK, V> {
 	@Nullable
 	V getByDerivedKeyIfPresent(@Nonnull DK derivedKey);
 
+	/**
+	 * Associates the value with the derived key replacing the cached value, if any, and
+	 * retaining all the keys already pointing to the derived key. The replaced value is not
+	 * reported to the removal listener. If a {@code MultikeyCacheWriter} is registered, the
+	 * value is passed to it either synchronously before caching (write-through) or
+	 * asynchronously after caching (write-behind). In the former case writer exceptions are
+	 * propagated to the caller and the value is not cached, in the latter the value is not
+	 * cached either if the write-behind buffer is full.
+	 *
+	 * @param derivedKey the derived key to associate the value with
+	 * @param value the value to cache
+	 * @throws java.util.concurrent.RejectedExecutionException if the write-behind buffer is full
+	 */
+	void put(@Nonnull DK derivedKey, @Nonnull V value);
+
+	/**
+	 * Pins the derived key: its value, either cached already or loaded next, is moved to
+	 * a non-evicting region where it is neither evicted by size nor expired, so that it and
+	 * all its keys stay in the cache until invalidated or unpinned; pinned values are not
+	 * reloaded on expiry, so that an update must be put explicitly. The weight of pinned
+	 * values is deducted from the maximum size or weight of the cache, evicting colder
+	 * values instead.
+	 *
+	 * @param derivedKey the derived key to pin
+	 */
+	void pin(@Nonnull DK derivedKey);
+
+	/**
+	 * Unpins the derived key moving its value back to the regular, evicting region. Values
+	 * matching the pinning predicate of the builder are pinned again when reloaded.
+	 *
+	 * @param derivedKey the derived key to unpin
+	 */
+	void unpin(@Nonnull DK derivedKey);
+
 	/**
 	 * Invalidates the key evicting the corresponding derived key, the value and all other
 	 * keys associated with the same derived key.
@@ -137,4 +212,105 @@ public interface AsyncMultikeyCache<K, DK, V> {
 	 * @param keys the keys to invalidate
 	 */
 	void invalidateAll(@Nonnull Iterable<K> keys);
+
+	/**
+	 * Returns a snapshot of the statistics of the stale-if-error grace tier. If the grace
+	 * tier is not enabled, all counts are zero.
+	 *
+	 * @return the grace tier statistics
+	 */
+	@Nonnull
+	GraceStats graceStats();
+
+	/**
+	 * Returns a sequential stream over the cached values, including pinned ones, with their
+	 * derived keys and the keys pointing to them. The stream iterates the cache without
+	 * taking a snapshot or locking it and is weakly consistent: it reflects the state of the
+	 * cache at some point at or since its creation, does not include values still loading,
+	 * and may miss or repeat values being pinned or unpinned concurrently. The stream can be
+	 * processed in parallel: pinned values split along their concurrent map, while the
+	 * values of the evicting region split by copying batches of entries into arrays, as the
+	 * caffeine view of an async cache only splits via its iterator.
+	 *
+	 * @return the stream of entries
+	 */
+	@Nonnull
+	Stream<Entry<K, DK, V>> entries();
+
+	/**
+	 * Retrieves the values for all the keys as with {@code get} and publishes them, paired
+	 * with their keys, in the order of completion. Values are retrieved concurrently as soon
+	 * as the subscriber requests the first element, while publishing follows the demand of
+	 * the subscriber. The failure to retrieve any value terminates the publisher with that
+	 * failure. Every subscription retrieves the values anew.
+	 *
+	 * @param keys the keys to retrieve the values for
+	 * @return the publisher of the key and value pairs
+	 */
+	@Nonnull
+	default Publisher<Map.Entry<K, V>> publishAll(@Nonnull Iterable<K> keys) {
+		return new BulkGetPublisher<>(keys, this::get);
+	}
+
+	/**
+	 * Returns a snapshot of the estimated heap footprint of the cache per tier. The
+	 * footprint is maintained incrementally on insertion and removal and is cheap to obtain.
+	 *
+	 * @return the estimated footprint
+	 */
+	@Nonnull
+	Footprint footprint();
+
+	/**
+	 * Releases background resources held by the cache flushing the pending writes of a
+	 * write-behind writer, if any. The cache must not be used after closing.
+	 */
+	@Override
+	void close();
+
+	/**
+	 * Entry defines a cached value with its derived key and the keys pointing to it.
+	 *
+	 * @param <K> the type of keys maintained by the cache
+	 * @param <DK> the type of derived keys used as common denominator to access cached values
+	 * @param <V> the type of mapped values
+	 */
+	@Immutable
+	final class Entry<K, DK, V> {
+
+		private final DK derivedKey;
+
+		private final V value;
+
+		private final Set<K> keys;
+
+		Entry(DK derivedKey, V value, Set<K> keys) {
+			this.derivedKey = derivedKey;
+			this.value = value;
+			this.keys = keys;
+		}
+
+		@Nonnull
+		public DK derivedKey() {
+			return derivedKey;
+		}
+
+		@Nonnull
+		public V value() {
+			return value;
+		}
+
+		/**
+		 * @return the unmodifiable, possibly live, view of the keys pointing to the value
+		 */
+		@Nonnull
+		public Set<K> keys() {
+			return keys;
+		}
+
+		@Override
+		public String toString() {
+			return "Entry{derivedKey=" + derivedKey + ", value=" + value + ", keys=" + keys + "}";
+		}
+	}
 }
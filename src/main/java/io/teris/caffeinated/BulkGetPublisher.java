@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import javax.annotation.Nonnull;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+
+/**
+ * A cold publisher of the values retrieved for a number of keys: every subscription starts
+ * retrieving all the values on the first request and queues them as they complete, while
+ * the queue is drained to the subscriber, by whichever thread completes a value or
+ * requests more, as far as the demand allows. Signals to the subscriber are serialized by
+ * a work-in-progress counter.
+ */
+class BulkGetPublisher<K, V> implements Publisher<Map.Entry<K, V>> {
+
+	private final Iterable<K> keys;
+
+	private final Function<K, CompletableFuture<V>> getter;
+
+	BulkGetPublisher(@Nonnull Iterable<K> keys, @Nonnull Function<K, CompletableFuture<V>> getter) {
+		this.keys = keys;
+		this.getter = getter;
+	}
+
+	@Override
+	public void subscribe(Subscriber<? super Map.Entry<K, V>> subscriber) {
+		Objects.requireNonNull(subscriber, "subscriber must not be null");
+		BulkGetSubscription subscription = new BulkGetSubscription(subscriber);
+		subscriber.onSubscribe(subscription);
+	}
+
+	private class BulkGetSubscription implements Subscription {
+
+		private final Subscriber<? super Map.Entry<K, V>> subscriber;
+
+		private final Queue<Map.Entry<K, V>> completed = new ConcurrentLinkedQueue<>();
+
+		private final AtomicLong requested = new AtomicLong(0);
+
+		private final AtomicInteger wip = new AtomicInteger(0);
+
+		private final AtomicBoolean started = new AtomicBoolean(false);
+
+		private final AtomicReference<Throwable> failure = new AtomicReference<>(null);
+
+		private final AtomicInteger pending = new AtomicInteger(0);
+
+		private volatile boolean cancelled = false;
+
+		private volatile boolean allStarted = false;
+
+		private boolean done = false;
+
+		BulkGetSubscription(Subscriber<? super Map.Entry<K, V>> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				failure.compareAndSet(null, new IllegalArgumentException("requested number of elements must be positive"));
+			} else {
+				requested.getAndUpdate(current -> current + n < 0 ? Long.MAX_VALUE : current + n);
+			}
+			if (started.compareAndSet(false, true)) {
+				start();
+			}
+			drain();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			completed.clear();
+		}
+
+		private void start() {
+			List<K> all = new ArrayList<>();
+			keys.forEach(all::add);
+			pending.set(all.size());
+			for (K key : all) {
+				if (cancelled) {
+					break;
+				}
+				CompletableFuture<V> future;
+				try {
+					future = getter.apply(key);
+				} catch (RuntimeException ex) {
+					// thrown before any future exists, e.g. by a key encoder
+					failure.compareAndSet(null, ex);
+					pending.decrementAndGet();
+					break;
+				}
+				future.whenComplete((value, t) -> {
+					if (t != null) {
+						failure.compareAndSet(null, t);
+					} else {
+						completed.offer(new AbstractMap.SimpleImmutableEntry<>(key, value));
+					}
+					pending.decrementAndGet();
+					drain();
+				});
+			}
+			allStarted = true;
+		}
+
+		private void drain() {
+			if (wip.getAndIncrement() != 0) {
+				return;
+			}
+			int missed = 1;
+			do {
+				while (!done && !cancelled) {
+					Throwable t = failure.get();
+					if (t != null) {
+						done = true;
+						completed.clear();
+						subscriber.onError(t);
+						break;
+					}
+					if (allStarted && pending.get() == 0 && completed.isEmpty()) {
+						done = true;
+						subscriber.onComplete();
+						break;
+					}
+					if (requested.get() == 0 || completed.isEmpty()) {
+						break;
+					}
+					requested.decrementAndGet();
+					subscriber.onNext(completed.poll());
+				}
+				missed = wip.addAndGet(-missed);
+			} while (missed != 0);
+		}
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+
+/**
+ * Hooks for instrumenting the multikey cache. Timed operations return an opaque token
+ * from their start hook that is passed back on finish; a null token means that nothing
+ * is recorded. All hooks are no-ops by default.
+ * <p>
+ * The Java Flight Recorder implementation is compiled for Java 11 into the multi-release
+ * part of the jar and loaded reflectively and only if the running JDK provides JFR, so
+ * that the cache runs unchanged on JDKs without it.
+ */
+interface CacheInstrumentation {
+
+	CacheInstrumentation NOOP = new CacheInstrumentation() {};
+
+	String JFR_IMPLEMENTATION = "io.teris.caffeinated.JfrCacheInstrumentation";
+
+	@Nonnull
+	static CacheInstrumentation create() {
+		try {
+			Class<?> recorder = Class.forName("jdk.jfr.FlightRecorder");
+			if (!(Boolean) recorder.getMethod("isAvailable").invoke(null)) {
+				return NOOP;
+			}
+			return (CacheInstrumentation) Class.forName(JFR_IMPLEMENTATION).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError | ClassCastException ex) {
+			return NOOP;
+		}
+	}
+
+	@Nullable
+	default Object keyMappingStarted() {
+		return null;
+	}
+
+	default void keyMappingFinished(@Nullable Object token, @Nullable Throwable error) {
+	}
+
+	@Nullable
+	default Object valueLoadingStarted() {
+		return null;
+	}
+
+	default void valueLoadingFinished(@Nullable Object token, @Nullable Throwable error) {
+	}
+
+	default void evicted(@Nonnull RemovalCause cause, int aliasCount) {
+	}
+
+	default void aliasRegistered() {
+	}
+
+	default void aliasRemovedOnFailure(@Nonnull Throwable error) {
+	}
+
+	default void writeBehindDeleteDropped(@Nonnull RemovalCause cause) {
+	}
+}
@@ -4,12 +4,28 @@
 
 package io.teris.caffeinated;
 
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -17,17 +33,38 @@ import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.Policy;
 import com.github.benmanes.caffeine.cache.RemovalCause;
 import com.github.benmanes.caffeine.cache.RemovalListener;
 
+import io.teris.caffeinated.trace.TraceRecorder;
+
 
 /**
  * Implements AsyncMultikeyCache on top of two AsyncLoadingCache instances from caffeine,
  * in which the `preCache` mapping from keys to derived keys is used as an async and
  * performant map only (that is without automated eviction etc.) and all the caching
  * parametrization is applied to the `cache` instance mapping from derived keys to values.
+ * <p>
+ * Loads in flight are tracked per derived key without locks: invalidating a derived key
+ * marks its load in flight as obsolete before removing it from the cache, and the value of
+ * an obsolete load completes the load normally, so that it is returned to the callers
+ * waiting for it, while its removal is not notified as the removal of a cached value. A
+ * key mapping in flight is removed on invalidation and its derived key invalidated once
+ * the mapping completes.
  */
-class CaffeinatedMultikeyCache<K, DK, V> implements AsyncMultikeyCache<K, DK, V> {
+class CaffeinatedMultikeyCache<K, DK, V> implements MultikeyCachePartition<K, DK, V> {
+
+	// the footprint cap is adjusted under budget once it drifts by more than 1/16
+	static final int FOOTPRINT_HYSTERESIS_SHIFT = 4;
+
+	/**
+	 * How the key of a get relates to the derived key: as an alias in the alias index, as an
+	 * alias in an index outside this cache, or as no alias at all.
+	 */
+	private enum Aliasing {
+		INDEXED, EXTERNAL, NONE
+	}
 
 	final AsyncLoadingCache<K, DK> keys2derivedKey;
 
@@ -41,6 +78,49 @@ class CaffeinatedMultikeyCache<K, DK, V> implements AsyncMultikeyCache<K, DK, V>
 
 	private final RemovalListener<Set<K>, V> removalListener;
 
+	private final Consumer<Object> aliasRemovalHook;
+
+	private final MultikeyCacheWriter<K, DK, V> writer;
+
+	private final WriteBehindBuffer<K, DK, V> writeBehindBuffer;
+
+	private final LoadHedger loadHedger;
+
+	private final GraceTier<K, DK, V> graceTier;
+
+	private final TraceRecorder traceRecorder;
+
+	private final ProactiveExpiry<DK, V> proactiveExpiry;
+
+	private final FrequencySketch admissionSketch;
+
+	private final Executor executor;
+
+	private final PinnedRegion<DK, V> pinnedRegion;
+
+	private final Map<DK, V> pinMoves = new ConcurrentHashMap<>();
+
+	private final FootprintTracker<K, DK, V> footprintTracker;
+
+	private final long maximumFootprint;
+
+	private final AtomicBoolean enforcingFootprint = new AtomicBoolean(false);
+
+	private volatile long footprintCap = Long.MAX_VALUE;
+
+	private final CacheInstrumentation instrumentation = CacheInstrumentation.create();
+
+	// obsolete flags of the loads in flight
+	private final Map<DK, AtomicBoolean> loadsInFlight = new ConcurrentHashMap<>();
+
+	private final Map<DK, V> obsoleteLoads = new ConcurrentHashMap<>();
+
+	private volatile boolean cascaded = false;
+
+	private final boolean ownsScheduler;
+
+	private volatile ScheduledExecutorService scheduler;
+
 	CaffeinatedMultikeyCache(CaffeinatedMultikeyCacheBuilder<K, DK, V> builder) {
 		keys2derivedKey = Caffeine.newBuilder()
 			.executor(builder.executor)
@@ -54,39 +134,157 @@ class CaffeinatedMultikeyCache<K, DK, V> implements AsyncMultikeyCache<K, DK, V>
 			.buildAsync($ -> {
 				throw new IllegalStateException("missing default value loader");
 			});
+		pinnedRegion = new PinnedRegion<>(builder.pinningPredicate, cache.synchronous().policy().eviction());
+		footprintTracker = new FootprintTracker<>(builder.keySizer, builder.derivedKeySizer, builder.valueSizer);
+		maximumFootprint = builder.maximumFootprint;
+		if (maximumFootprint > 0 && !cache.synchronous().policy().eviction().isPresent()) {
+			throw new IllegalStateException("maximum footprint requires maximumSize or maximumWeight");
+		}
 		keyMapper = builder.keyMapper;
 		valueLoader = builder.valueLoader;
 		removalListener = builder.removalListener;
+		aliasRemovalHook = builder.aliasRemovalHook;
+		traceRecorder = builder.traceRecorder;
+		executor = builder.executor;
+		admissionSketch = builder.admissionExpectedKeys > 0 ? new FrequencySketch(builder.admissionExpectedKeys) : null;
+		scheduler = builder.scheduler;
+		ownsScheduler = builder.scheduler == null;
+		if (builder.gracePeriod != null && builder.weigher == null
+			&& cache.synchronous().policy().eviction().map(Policy.Eviction::isWeighted).orElse(false)) {
+			throw new IllegalStateException("stale-if-error with a maximum weight requires the weigher");
+		}
+		graceTier = builder.gracePeriod != null
+			? new GraceTier<>(builder.gracePeriod, builder.graceInitialBackoff,
+				cache.synchronous().policy().eviction().map(Policy.Eviction::getMaximum).orElse(0L),
+				builder.weigher, builder.ticker, builder.executor, this::scheduler, this::recovered)
+			: null;
+		proactiveExpiry = builder.expirationResolution != null
+			? new ProactiveExpiry<>(cache.synchronous(), builder.expirationResolution, builder.ticker, this::scheduler)
+			: null;
+		loadHedger = builder.hedgingPolicy != null ? new LoadHedger(builder.hedgingPolicy, builder.executor, this::scheduler) : null;
+		if (builder.writeBehind) {
+			writer = null;
+			writeBehindBuffer = new WriteBehindBuffer<>(builder.writer, builder.writeBehindBatchSize,
+				builder.writeBehindFlushInterval, builder.writeBehindMaxPending, builder.executor, scheduler());
+		} else {
+			writer = builder.writer;
+			writeBehindBuffer = null;
+		}
 	}
 
 	@Override
 	@Nonnull
 	public CompletableFuture<V> get(@Nonnull K key, @Nonnull Function<K, DK> keyMapper, @Nonnull BiFunction<K, DK, V> valueLoader) {
+		if (keyMapper instanceof KeyCascade) {
+			cascaded = true;
+			KeyCascade<K, DK> cascade = (KeyCascade<K, DK>) keyMapper;
+			return get(key, keys2derivedKey.get(key, ($, executor) -> resolveCascade(key, cascade, 0, key, executor)), Aliasing.INDEXED, true, valueLoader);
+		}
+		if (!admitted(key)) {
+			// the value is cached as for any other key, only the alias is not registered
+			return get(key, CompletableFuture.supplyAsync(() -> mapKey(key, keyMapper), executor), Aliasing.NONE, true, valueLoader);
+		}
+		return get(key, keys2derivedKey.get(key, $ -> {
+			DK derivedKey = mapKey(key, keyMapper);
+			registerAlias(key, derivedKey);
+			return derivedKey;
+		}), Aliasing.INDEXED, true, valueLoader);
+	}
+
+	/**
+	 * Serves the value of a derived key resolved outside the alias index, registering no
+	 * alias for the key.
+	 */
+	CompletableFuture<V> getByDerivedKey(K key, DK derivedKey, BiFunction<K, DK, V> valueLoader) {
+		return get(key, CompletableFuture.completedFuture(derivedKey), Aliasing.NONE, true, valueLoader);
+	}
+
+	/**
+	 * Serves the value of a derived key the key is an alias of in an index kept outside
+	 * this cache, e.g. of fingerprints; the alias is removed on failure as if indexed here.
+	 */
+	CompletableFuture<V> getByAlias(K key, DK derivedKey, BiFunction<K, DK, V> valueLoader) {
+		return get(key, CompletableFuture.completedFuture(derivedKey), Aliasing.EXTERNAL, true, valueLoader);
+	}
+
+	/**
+	 * Maps the key to the derived key without registering the key as an alias, for keys
+	 * indexed outside this cache; intermediate keys of cascades are indexed as usual.
+	 */
+	CompletableFuture<DK> mapUnregistered(K key, Function<K, DK> keyMapper) {
+		if (keyMapper instanceof KeyCascade) {
+			cascaded = true;
+			return resolveCascade(null, (KeyCascade<K, DK>) keyMapper, 0, key, executor);
+		}
+		return CompletableFuture.supplyAsync(() -> mapKey(key, keyMapper), executor);
+	}
+
+	@Nonnull
+	@Override
+	public CompletableFuture<V> getUncached(@Nonnull K key, @Nonnull DK derivedKey, @Nonnull BiFunction<K, DK, V> valueLoader) {
+		return get(key, CompletableFuture.completedFuture(derivedKey), Aliasing.NONE, false, valueLoader);
+	}
+
+	/**
+	 * Serves the value once the derived key is resolved, either via the alias index, via
+	 * an external index, in which case the key is not checked against the alias index, or
+	 * without an alias, in which case the key is neither checked against nor removed from
+	 * the index, and either cached or, for obsolete mappings, not.
+	 */
+	private CompletableFuture<V> get(K key, CompletableFuture<DK> derivedKeyFuture, Aliasing aliasing, boolean cacheable, BiFunction<K, DK, V> valueLoader) {
 		AtomicReference<DK> derivedKeyHolder = new AtomicReference<>(null);
-		return keys2derivedKey
-			.get(key, $ -> {
-				DK derivedKey = keyMapper.apply(key);
-				derivedKey2Keys.get(derivedKey, $$ -> ConcurrentHashMap.newKeySet()).add(key);
-				return derivedKey;
-			})
+		return derivedKeyFuture
 			.thenCompose(derivedKey -> {
 				derivedKeyHolder.set(derivedKey);
-				return cache.get(derivedKey, $ -> valueLoader.apply(key, derivedKey));
+				if (traceRecorder != null) {
+					traceRecorder.recordAccess(key, derivedKey);
+				}
+				V pinned = pinnedRegion.get(derivedKey);
+				if (pinned != null) {
+					return CompletableFuture.completedFuture(pinned);
+				}
+				if (!cacheable || aliasing == Aliasing.INDEXED && keys2derivedKey.getIfPresent(key) != derivedKeyFuture) {
+					// mapping invalidated while in flight
+					return loadUncached(key, derivedKey, valueLoader);
+				}
+				if (!pinnedRegion.enabled()) {
+					return getCached(key, derivedKey, valueLoader, null);
+				}
+				// only values loaded by this call are considered for pinning
+				AtomicBoolean loaded = new AtomicBoolean(false);
+				return getCached(key, derivedKey, valueLoader, loaded)
+					.thenApply(value -> {
+						if (loaded.get()) {
+							pinIfRequired(derivedKey, value);
+						}
+						return value;
+					});
 			})
 			.exceptionally((t) -> {
 				DK derivedKey = derivedKeyHolder.get();
 				// intentional: only true if key mapper called and exceptions occurred in value mapper
-				if (derivedKey != null) {
+				if (derivedKey != null && aliasing != Aliasing.NONE) {
 					try {
 						Set<K> keys = derivedKey2Keys.getIfPresent(derivedKey);
-						if (keys != null) {
-							keys.remove(key);
+						if (keys != null && keys.remove(key)) {
+							Set<K> removed = Collections.singleton(key);
+							footprintTracker.aliasesRemoved(removed);
+							aliasesRemoved(removed);
 						}
 						keys2derivedKey.synchronous().invalidate(key);
+						instrumentation.aliasRemovedOnFailure(t);
 					} catch (Exception ex) {
 						// ignored in favour of original exception
 					}
 				}
+				// only failed loads of mapped keys are masked, never failed mappings, which may
+				// stand for revoked keys
+				if (graceTier != null && derivedKey != null) {
+					V stale = graceTier.serveStale(key, derivedKey, valueLoader);
+					if (stale != null) {
+						return stale;
+					}
+				}
 				throw t instanceof RuntimeException ? (RuntimeException) t : new RuntimeException(t);
 			});
 	}
@@ -97,11 +295,23 @@ class CaffeinatedMultikeyCache<K, DK, V> implements AsyncMultikeyCache<K, DK, V>
 		return get(key, keyMapper, valueLoader);
 	}
 
+	@Nonnull
+	@Override
+	public CompletableFuture<V> get(@Nonnull K key, @Nonnull Function<K, DK> keyMapper, @Nonnull BiFunction<K, DK, V> valueLoader, @Nonnull Duration timeout) {
+		return withTimeout(get(key, keyMapper, valueLoader), timeout, this::scheduler);
+	}
+
+	@Nonnull
+	@Override
+	public CompletableFuture<V> get(@Nonnull K key, @Nonnull Duration timeout) {
+		return withTimeout(get(key), timeout, this::scheduler);
+	}
+
 	@Nullable
 	@Override
 	public V getIfPresent(@Nonnull K key) {
 		DK derivedKey= keys2derivedKey.synchronous().getIfPresent(key);
-		return derivedKey != null ? cache.synchronous().getIfPresent(derivedKey) : null;
+		return derivedKey != null ? getByDerivedKeyIfPresent(derivedKey) : null;
 	}
 
 	@Nullable
@@ -113,38 +323,469 @@ class CaffeinatedMultikeyCache<K, DK, V> implements AsyncMultikeyCache<K, DK, V>
 	@Nullable
 	@Override
 	public V getByDerivedKeyIfPresent(@Nonnull DK derivedKey) {
-		return cache.synchronous().getIfPresent(derivedKey);
+		V pinned = pinnedRegion.get(derivedKey);
+		return pinned != null ? pinned : cache.synchronous().getIfPresent(derivedKey);
+	}
+
+	@Override
+	public void put(@Nonnull DK derivedKey, @Nonnull V value) {
+		if (writer != null) {
+			writer.write(derivedKey, value);
+		}
+		if (writeBehindBuffer != null && !writeBehindBuffer.write(derivedKey, value)) {
+			throw new RejectedExecutionException("write-behind buffer full");
+		}
+		if (!pinnedRegion.replace(derivedKey, value)) {
+			cache.put(derivedKey, CompletableFuture.completedFuture(value));
+			valueAdded(derivedKey, value);
+			pinIfRequired(derivedKey, value);
+		}
+	}
+
+	@Override
+	public void pin(@Nonnull DK derivedKey) {
+		pinnedRegion.pinExplicitly(derivedKey);
+		V value = cache.synchronous().getIfPresent(derivedKey);
+		if (value != null) {
+			pinIfRequired(derivedKey, value);
+		}
+	}
+
+	@Override
+	public void unpin(@Nonnull DK derivedKey) {
+		V value = pinnedRegion.get(derivedKey);
+		if (value != null) {
+			cache.put(derivedKey, CompletableFuture.completedFuture(value));
+			scheduleExpiry(derivedKey);
+		}
+		pinnedRegion.unpin(derivedKey);
 	}
 
 	@Override
 	public void invalidate(@Nonnull K key) {
-		DK derivedKey = keys2derivedKey.synchronous().getIfPresent(key);
-		if (derivedKey != null) {
-			cache.synchronous().invalidate(derivedKey);
+		CompletableFuture<DK> derivedKeyFuture = keys2derivedKey.getIfPresent(key);
+		if (derivedKeyFuture != null) {
+			if (derivedKeyFuture.isDone()) {
+				DK derivedKey = keys2derivedKey.synchronous().getIfPresent(key);
+				if (derivedKey != null) {
+					invalidateDerivedKey(derivedKey);
+				}
+			} else {
+				keys2derivedKey.synchronous().invalidate(key);
+				derivedKeyFuture.thenAccept(this::invalidateDerivedKey);
+			}
 		}
+		releaseGrace(key);
 	}
 
 	@Override
 	public void invalidateAll(@Nonnull Iterable<K> keys) {
-		LoadingCache<K, DK> syncPreCache = keys2derivedKey.synchronous();
-		LoadingCache<DK, V> syncCache = cache.synchronous();
-		keys.forEach(key -> {
-			DK derivedKey = syncPreCache.getIfPresent(key);
-			if (derivedKey != null) {
-				syncCache.invalidate(derivedKey);
+		keys.forEach(this::invalidate);
+	}
+
+	@Override
+	public boolean indexes(@Nonnull K key) {
+		return keys2derivedKey.getIfPresent(key) != null;
+	}
+
+	@Nonnull
+	@Override
+	public AsyncLoadingCache<DK, V> valueCache() {
+		return cache;
+	}
+
+	@Nonnull
+	@Override
+	public GraceStats graceStats() {
+		return graceTier != null ? graceTier.stats() : GraceStats.EMPTY;
+	}
+
+	@Nonnull
+	@Override
+	public Stream<Entry<K, DK, V>> entries() {
+		Stream<Entry<K, DK, V>> pinned = StreamSupport.stream(new MappingSpliterator<>(
+			pinnedRegion.values().entrySet().spliterator(), entry -> entry(entry.getKey(), entry.getValue().value)), false);
+		Stream<Entry<K, DK, V>> cached = StreamSupport.stream(new MappingSpliterator<>(
+			cache.synchronous().asMap().entrySet().spliterator(), entry -> entry(entry.getKey(), entry.getValue())), false);
+		return Stream.concat(pinned, cached);
+	}
+
+	@Nonnull
+	@Override
+	public Footprint footprint() {
+		return footprintTracker.footprint();
+	}
+
+	@Override
+	public void close() {
+		try {
+			if (writeBehindBuffer != null) {
+				writeBehindBuffer.close();
+			}
+		} finally {
+			if (proactiveExpiry != null) {
+				proactiveExpiry.close();
 			}
+			ScheduledExecutorService scheduler = this.scheduler;
+			if (ownsScheduler && scheduler != null) {
+				scheduler.shutdown();
+			}
+		}
+	}
+
+	ScheduledExecutorService scheduler() {
+		ScheduledExecutorService res = scheduler;
+		if (res == null) {
+			synchronized (this) {
+				res = scheduler;
+				if (res == null) {
+					res = Executors.newSingleThreadScheduledExecutor(runnable -> {
+						Thread thread = new Thread(runnable, "caffeinated-scheduler");
+						thread.setDaemon(true);
+						return thread;
+					});
+					scheduler = res;
+				}
+			}
+		}
+		return res;
+	}
+
+	private <I, O> O mapKey(I key, Function<I, O> keyMapper) {
+		Object token = instrumentation.keyMappingStarted();
+		try {
+			O res = keyMapper.apply(key);
+			instrumentation.keyMappingFinished(token, null);
+			return res;
+		} catch (RuntimeException ex) {
+			instrumentation.keyMappingFinished(token, ex);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Maps the input of the cascade stage and resolves the output to the derived key
+	 * either directly, for the last stage, or via the alias of the output as the key of the
+	 * next stage, which is only mapped if not cached yet. The alias key of this stage, if
+	 * any, is registered once the derived key is known.
+	 */
+	@SuppressWarnings("unchecked")
+	private CompletableFuture<DK> resolveCascade(@Nullable K aliasKey, KeyCascade<K, DK> cascade, int stage, Object input, Executor executor) {
+		return CompletableFuture
+			.supplyAsync(() -> mapKey(input, $ -> cascade.applyStage(stage, input)), executor)
+			.thenCompose(output -> {
+				if (stage == cascade.size() - 1) {
+					return CompletableFuture.completedFuture((DK) output);
+				}
+				K nextKey = (K) new KeyCascade.StageKey(stage + 1, output);
+				return keys2derivedKey.get(nextKey, ($, nextExecutor) -> resolveCascade(nextKey, cascade, stage + 1, output, nextExecutor));
+			})
+			.thenApply(derivedKey -> {
+				if (aliasKey != null) {
+					registerAlias(aliasKey, derivedKey);
+				}
+				return derivedKey;
+			});
+	}
+
+	void registerAlias(K key, DK derivedKey) {
+		Set<K> keys = derivedKey2Keys.get(derivedKey, $ -> {
+			footprintTracker.aliasSetAdded();
+			return ConcurrentHashMap.newKeySet();
 		});
+		if (keys.add(key)) {
+			footprintTracker.aliasAdded(key);
+			enforceFootprint();
+		}
+		instrumentation.aliasRegistered();
+	}
+
+	private V load(K key, DK derivedKey, BiFunction<K, DK, V> valueLoader) {
+		if (traceRecorder != null) {
+			traceRecorder.recordLoad(derivedKey);
+		}
+		Object token = instrumentation.valueLoadingStarted();
+		try {
+			V res = valueLoader.apply(key, derivedKey);
+			instrumentation.valueLoadingFinished(token, null);
+			return res;
+		} catch (RuntimeException ex) {
+			instrumentation.valueLoadingFinished(token, ex);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Loads the value into the cache unless cached or loading already. The load is
+	 * registered as in flight for the derived key, so that an invalidation can mark it as
+	 * obsolete, in which case its value is returned but neither counted as added nor
+	 * notified on its removal, which the invalidation has taken care of.
+	 */
+	private CompletableFuture<V> getCached(K key, DK derivedKey, BiFunction<K, DK, V> valueLoader, @Nullable AtomicBoolean loaded) {
+		return cache.get(derivedKey, ($, $$) -> {
+			AtomicBoolean obsolete = new AtomicBoolean(false);
+			loadsInFlight.put(derivedKey, obsolete);
+			CompletableFuture<V> res = loadHedger != null
+				? loadHedger.load(() -> load(key, derivedKey, valueLoader))
+				: CompletableFuture.supplyAsync(() -> load(key, derivedKey, valueLoader), executor);
+			return res.whenComplete((value, t) -> {
+				loadsInFlight.remove(derivedKey, obsolete);
+				if (value == null) {
+					return;
+				}
+				if (obsolete.get()) {
+					obsoleteLoads.put(derivedKey, value);
+				} else {
+					valueAdded(derivedKey, value);
+					if (loaded != null) {
+						loaded.set(true);
+					}
+				}
+			});
+		});
+	}
+
+	/**
+	 * Moves the cached value to the pinned region if the derived key is pinned explicitly
+	 * or the value matches the pinning predicate. The removal of the value from the
+	 * evicting region is marked as a move before it is removed, so that its notification
+	 * consumes the mark and is not propagated whatever happens to the pin meanwhile, and
+	 * the move is undone if the value has been replaced or removed in the meantime.
+	 */
+	private void pinIfRequired(DK derivedKey, V value) {
+		if (pinnedRegion.shouldPin(derivedKey, value)
+			&& pinnedRegion.add(derivedKey, value, pinnedRegion.weightOf(derivedKey))) {
+			pinMoves.put(derivedKey, value);
+			if (cache.synchronous().asMap().remove(derivedKey, value)) {
+				if (proactiveExpiry != null) {
+					proactiveExpiry.deschedule(derivedKey);
+				}
+			} else {
+				pinMoves.remove(derivedKey, value);
+				pinnedRegion.remove(derivedKey, value);
+			}
+		}
+	}
+
+	void invalidateDerivedKey(DK derivedKey) {
+		// marked before the removal, so that a load in flight removed below is always marked
+		AtomicBoolean obsolete = loadsInFlight.get(derivedKey);
+		if (obsolete != null) {
+			obsolete.set(true);
+		}
+		CompletableFuture<V> current = cache.getIfPresent(derivedKey);
+		V pinned = pinnedRegion.remove(derivedKey);
+		cache.synchronous().invalidate(derivedKey);
+		if (pinned != null) {
+			onRemoval(derivedKey, pinned, RemovalCause.EXPLICIT);
+		} else if (current == null || !current.isDone() || current.isCompletedExceptionally()) {
+			// no removal is notified without a loaded value, but aliases may be registered
+			discardAliases(derivedKey);
+		}
+	}
+
+	private void discardAliases(DK derivedKey) {
+		Set<K> keys = derivedKey2Keys.asMap().remove(derivedKey);
+		if (keys != null) {
+			footprintTracker.aliasSetRemoved();
+			footprintTracker.aliasesRemoved(keys);
+			keys2derivedKey.synchronous().invalidateAll(keys);
+			aliasesRemoved(keys);
+		}
+	}
+
+	private void aliasesRemoved(Set<K> keys) {
+		if (aliasRemovalHook != null) {
+			keys.forEach(aliasRemovalHook);
+		}
+	}
+
+	/**
+	 * Counts a key missing in the alias index in the admission sketch and admits it once
+	 * it has been seen more than once.
+	 */
+	boolean admitted(K key) {
+		return admissionSketch == null
+			|| keys2derivedKey.getIfPresent(key) != null
+			|| admissionSketch.increment(key) > 1;
+	}
+
+	/**
+	 * Serves the value from the cache if present or loads it without caching it otherwise.
+	 */
+	private CompletableFuture<V> loadUncached(K key, DK derivedKey, BiFunction<K, DK, V> valueLoader) {
+		CompletableFuture<V> cached = cache.getIfPresent(derivedKey);
+		if (cached != null) {
+			return cached;
+		}
+		if (loadHedger != null) {
+			return loadHedger.load(() -> load(key, derivedKey, valueLoader));
+		}
+		return CompletableFuture.supplyAsync(() -> load(key, derivedKey, valueLoader), executor);
+	}
+
+	static <V> CompletableFuture<V> withTimeout(CompletableFuture<V> future, Duration timeout, Supplier<ScheduledExecutorService> scheduler) {
+		if (future.isDone()) {
+			return future;
+		}
+		// a separate future is completed on timeout to leave the shared load intact
+		CompletableFuture<V> res = new CompletableFuture<>();
+		ScheduledFuture<?> timer = scheduler.get().schedule(
+			() -> res.completeExceptionally(new TimeoutException("value not available within " + timeout)),
+			timeout.toNanos(), TimeUnit.NANOSECONDS);
+		future.whenComplete((v, t) -> {
+			timer.cancel(false);
+			if (t != null) {
+				res.completeExceptionally(t);
+			} else {
+				res.complete(v);
+			}
+		});
+		return res;
+	}
+
+	void releaseGrace(K key) {
+		if (graceTier != null) {
+			DK derivedKey = graceTier.derivedKeyOf(key);
+			if (derivedKey != null) {
+				graceTier.release(derivedKey);
+			}
+		}
+	}
+
+	private void recovered(DK derivedKey, V value) {
+		// a value loaded or put meanwhile is fresher than the recovered one; the keys are not
+		// registered again, so that every key is mapped anew and a revoked one fails
+		if (cache.getIfPresent(derivedKey) == null) {
+			cache.put(derivedKey, CompletableFuture.completedFuture(value));
+			valueAdded(derivedKey, value);
+		}
+	}
+
+	private void valueAdded(DK derivedKey, V value) {
+		footprintTracker.valueAdded(derivedKey, value);
+		scheduleExpiry(derivedKey);
+		enforceFootprint();
+	}
+
+	/**
+	 * Caps the maximum of the size-bounded cache in proportion to the excess of the total
+	 * footprint over the budget, so that caffeine evicts the coldest values, and lifts the
+	 * cap in proportion as the footprint falls below the budget. Under budget the cap is
+	 * only adjusted once it has drifted by more than a sixteenth, and always on the executor,
+	 * as setting the maximum takes the eviction lock of caffeine.
+	 */
+	private void enforceFootprint() {
+		if (maximumFootprint <= 0) {
+			return;
+		}
+		long total = footprintTracker.footprint().totalBytes();
+		long occupancy = occupancy();
+		long cap = footprintCap(total, occupancy);
+		boolean drifted = occupancy > 0 && Math.abs(cap - footprintCap) > footprintCap >>> FOOTPRINT_HYSTERESIS_SHIFT;
+		if ((total > maximumFootprint || drifted) && enforcingFootprint.compareAndSet(false, true)) {
+			try {
+				executor.execute(this::adjustFootprintCap);
+			} catch (RejectedExecutionException ex) {
+				enforcingFootprint.set(false);
+			}
+		}
+	}
+
+	private void adjustFootprintCap() {
+		try {
+			long total = footprintTracker.footprint().totalBytes();
+			long occupancy = occupancy();
+			if (total > maximumFootprint || occupancy > 0) {
+				long cap = footprintCap(total, occupancy);
+				pinnedRegion.cap(cap);
+				footprintCap = cap;
+			}
+		} finally {
+			enforcingFootprint.set(false);
+		}
+	}
+
+	private long occupancy() {
+		LoadingCache<DK, V> syncCache = cache.synchronous();
+		return syncCache.policy().eviction()
+			.map(eviction -> eviction.weightedSize().orElse(syncCache.estimatedSize()))
+			.orElse(0L);
+	}
+
+	private long footprintCap(long total, long occupancy) {
+		return total > 0 ? (long) (occupancy * ((double) maximumFootprint / total)) : Long.MAX_VALUE;
+	}
+
+	private void scheduleExpiry(DK derivedKey) {
+		if (proactiveExpiry != null) {
+			proactiveExpiry.schedule(derivedKey);
+		}
+	}
+
+	private Entry<K, DK, V> entry(DK derivedKey, V value) {
+		Set<K> keys = derivedKey2Keys.getIfPresent(derivedKey);
+		if (keys == null) {
+			return new Entry<>(derivedKey, value, Collections.emptySet());
+		}
+		return new Entry<>(derivedKey, value, Collections.unmodifiableSet(cascaded ? withoutStageKeys(keys) : keys));
+	}
+
+	private static <K> Set<K> withoutStageKeys(Set<K> keys) {
+		return keys.stream()
+			.filter(key -> !(key instanceof KeyCascade.StageKey))
+			.collect(Collectors.toSet());
 	}
 
 	private void onRemoval(@Nullable DK derivedKey, @Nullable V v, @Nonnull RemovalCause cause) {
-		if (derivedKey != null) {
+		if (derivedKey != null && cause == RemovalCause.REPLACED) {
+			footprintTracker.valueRemoved();
+		}
+		// the move of the value to the pinned region is not a removal of the entity, nor is
+		// the removal of an obsolete load, whose invalidation has discarded the aliases
+		if (derivedKey != null && v != null && cause == RemovalCause.EXPLICIT
+			&& (pinMoves.remove(derivedKey, v) || obsoleteLoads.remove(derivedKey, v))) {
+			return;
+		}
+		// nor is replacement by put, which retains the keys
+		if (derivedKey != null && cause != RemovalCause.REPLACED) {
+			if (proactiveExpiry != null) {
+				proactiveExpiry.deschedule(derivedKey);
+			}
+			footprintTracker.valueRemoved();
 			Set<K> keys = derivedKey2Keys.getIfPresent(derivedKey);
+			if (keys != null) {
+				footprintTracker.aliasSetRemoved();
+				footprintTracker.aliasesRemoved(keys);
+			}
+			if (cause.wasEvicted()) {
+				if (traceRecorder != null) {
+					traceRecorder.recordEviction(derivedKey);
+				}
+				instrumentation.evicted(cause, keys != null ? keys.size() : 0);
+			}
 			derivedKey2Keys.invalidate(derivedKey);
+			Set<K> removedKeys = keys != null ? keys : Collections.emptySet();
+			// intermediate keys of cascades are internal and never reported
+			Set<K> reportedKeys = cascaded ? withoutStageKeys(removedKeys) : removedKeys;
 			if (keys != null) {
 				if (removalListener != null) {
-					removalListener.onRemoval(keys, v, cause);
+					removalListener.onRemoval(reportedKeys, v, cause);
 				}
 				keys2derivedKey.synchronous().invalidateAll(keys);
+				aliasesRemoved(keys);
+			}
+			if (graceTier != null) {
+				if (cause.wasEvicted() && v != null) {
+					graceTier.retain(derivedKey, v, removedKeys);
+				} else {
+					graceTier.release(derivedKey);
+				}
+			}
+			if (writer != null) {
+				writer.delete(derivedKey, v, reportedKeys, cause);
+			} else if (writeBehindBuffer != null && !writeBehindBuffer.delete(derivedKey, v, reportedKeys, cause)) {
+				instrumentation.writeBehindDeleteDropped(cause);
 			}
 		}
 	}
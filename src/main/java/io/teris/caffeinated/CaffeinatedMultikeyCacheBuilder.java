@@ -4,16 +4,25 @@
 
 package io.teris.caffeinated;
 
+import java.time.Duration;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.RemovalListener;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.github.benmanes.caffeine.cache.Weigher;
+
+import io.teris.caffeinated.trace.TraceRecorder;
 
 
 class CaffeinatedMultikeyCacheBuilder<K, DK, V> implements MultikeyCacheBuilder<K, DK, V> {
@@ -32,6 +41,53 @@ class CaffeinatedMultikeyCacheBuilder<K, DK, V> implements MultikeyCacheBuilder<
 
 	Executor executor = Executors.newCachedThreadPool();
 
+	ScheduledExecutorService scheduler = null;
+
+	Ticker ticker = Ticker.systemTicker();
+
+	Weigher<DK, V> weigher = null;
+
+	MultikeyCacheWriter<K, DK, V> writer = null;
+
+	boolean writeBehind = false;
+
+	int writeBehindBatchSize = 0;
+
+	Duration writeBehindFlushInterval = null;
+
+	int writeBehindMaxPending = 0;
+
+	HedgingPolicy hedgingPolicy = null;
+
+	Duration gracePeriod = null;
+
+	Duration graceInitialBackoff = null;
+
+	TraceRecorder traceRecorder = null;
+
+	Duration expirationResolution = null;
+
+	int admissionExpectedKeys = 0;
+
+	BiPredicate<DK, V> pinningPredicate = null;
+
+	Sizer<K> keySizer = null;
+
+	Sizer<DK> derivedKeySizer = null;
+
+	Sizer<V> valueSizer = null;
+
+	long maximumFootprint = 0;
+
+	Function<K, byte[]> fingerprintEncoder = null;
+
+	RemovalListener<Set<AliasFingerprint>, V> fingerprintRemovalListener = null;
+
+	AliasFingerprint.Secret fingerprintSecret = null;
+
+	// internal: receives every alias removed from the index, as keyed in the index
+	Consumer<Object> aliasRemovalHook = null;
+
 	CaffeinatedMultikeyCacheBuilder(Caffeine<Object, Object> caffeine) {
 		this.caffeine = caffeine;
 	}
@@ -64,10 +120,192 @@ class CaffeinatedMultikeyCacheBuilder<K, DK, V> implements MultikeyCacheBuilder<
 		return this;
 	}
 
+	@Nonnull
+	@Override
+	public MultikeyCacheBuilder<K, DK, V> scheduler(@Nonnull ScheduledExecutorService scheduler) {
+		this.scheduler = scheduler;
+		return this;
+	}
+
+	@Nonnull
+	@Override
+	public MultikeyCacheBuilder<K, DK, V> ticker(@Nonnull Ticker ticker) {
+		this.ticker = ticker;
+		return this;
+	}
+
+	@Nonnull
+	@Override
+	public MultikeyCacheBuilder<K, DK, V> weigher(@Nonnull Weigher<DK, V> weigher) {
+		this.weigher = weigher;
+		return this;
+	}
+
+	@Nonnull
+	@Override
+	public MultikeyCacheBuilder<K, DK, V> writer(@Nonnull MultikeyCacheWriter<K, DK, V> writer) {
+		this.writer = writer;
+		this.writeBehind = false;
+		return this;
+	}
+
+	@Nonnull
+	@Override
+	public MultikeyCacheBuilder<K, DK, V> writeBehind(@Nonnull MultikeyCacheWriter<K, DK, V> writer, int batchSize, @Nonnull Duration flushInterval, int maxPending) {
+		if (batchSize <= 0 || maxPending < batchSize) {
+			throw new IllegalArgumentException("batch size must be positive and not exceed max pending");
+		}
+		if (flushInterval.isNegative() || flushInterval.isZero()) {
+			throw new IllegalArgumentException("flush interval must be positive");
+		}
+		this.writer = writer;
+		this.writeBehind = true;
+		this.writeBehindBatchSize = batchSize;
+		this.writeBehindFlushInterval = flushInterval;
+		this.writeBehindMaxPending = maxPending;
+		return this;
+	}
+
+	@Nonnull
+	@Override
+	public MultikeyCacheBuilder<K, DK, V> hedging(@Nonnull HedgingPolicy hedgingPolicy) {
+		this.hedgingPolicy = hedgingPolicy;
+		return this;
+	}
+
+	@Nonnull
+	@Override
+	public MultikeyCacheBuilder<K, DK, V> staleIfError(@Nonnull Duration gracePeriod, @Nonnull Duration initialBackoff) {
+		if (gracePeriod.isNegative() || gracePeriod.isZero() || initialBackoff.isNegative() || initialBackoff.isZero()) {
+			throw new IllegalArgumentException("grace period and initial backoff must be positive");
+		}
+		this.gracePeriod = gracePeriod;
+		this.graceInitialBackoff = initialBackoff;
+		return this;
+	}
+
+	@Nonnull
+	@Override
+	public MultikeyCacheBuilder<K, DK, V> traceRecorder(@Nonnull TraceRecorder traceRecorder) {
+		this.traceRecorder = traceRecorder;
+		return this;
+	}
+
+	@Nonnull
+	@Override
+	public MultikeyCacheBuilder<K, DK, V> proactiveExpiration(@Nonnull Duration resolution) {
+		if (resolution.isNegative() || resolution.isZero()) {
+			throw new IllegalArgumentException("resolution must be positive");
+		}
+		this.expirationResolution = resolution;
+		return this;
+	}
+
+	@Nonnull
+	@Override
+	public MultikeyCacheBuilder<K, DK, V> aliasAdmission(int expectedKeys) {
+		if (expectedKeys <= 0) {
+			throw new IllegalArgumentException("expected number of keys must be positive");
+		}
+		this.admissionExpectedKeys = expectedKeys;
+		return this;
+	}
+
+	@Nonnull
+	@Override
+	public MultikeyCacheBuilder<K, DK, V> pinningPredicate(@Nonnull BiPredicate<DK, V> pinningPredicate) {
+		this.pinningPredicate = pinningPredicate;
+		return this;
+	}
+
+	@Nonnull
+	@Override
+	public MultikeyCacheBuilder<K, DK, V> footprintSizers(@Nonnull Sizer<K> keySizer, @Nonnull Sizer<DK> derivedKeySizer, @Nonnull Sizer<V> valueSizer) {
+		this.keySizer = keySizer;
+		this.derivedKeySizer = derivedKeySizer;
+		this.valueSizer = valueSizer;
+		return this;
+	}
+
+	@Nonnull
+	@Override
+	public MultikeyCacheBuilder<K, DK, V> maximumFootprint(long bytes) {
+		if (bytes <= 0) {
+			throw new IllegalArgumentException("maximum footprint must be positive");
+		}
+		this.maximumFootprint = bytes;
+		return this;
+	}
+
+	@Nonnull
+	@Override
+	public MultikeyCacheBuilder<K, DK, V> fingerprintAliases(@Nonnull Function<K, byte[]> keyEncoder, @Nullable RemovalListener<Set<AliasFingerprint>, V> removalListener) {
+		this.fingerprintEncoder = keyEncoder;
+		this.fingerprintRemovalListener = removalListener;
+		return this;
+	}
+
 	@Nonnull
 	@Override
 	public AsyncMultikeyCache<K, DK, V> buildAsync() {
+		return buildPartition();
+	}
+
+	@Nonnull
+	@Override
+	public <P> PartitionedMultikeyCache<K, DK, V, P> buildPartitioned(@Nonnull Function<DK, P> partitioner, @Nonnull Function<P, Caffeine<Object, Object>> partitionCaffeine) {
+		return new PartitionedCaffeinatedMultikeyCache<>(this, partitioner, partitionCaffeine);
+	}
+
+	MultikeyCachePartition<K, DK, V> buildPartition() {
 		Objects.requireNonNull(caffeine, "caffeine builder must not be null");
+		if (fingerprintEncoder != null) {
+			return new FingerprintingMultikeyCache<>(this);
+		}
 		return new CaffeinatedMultikeyCache<>(this);
 	}
+
+	/**
+	 * Constructs a builder with all the settings of this builder but the caffeine one.
+	 */
+	CaffeinatedMultikeyCacheBuilder<K, DK, V> copy(Caffeine<Object, Object> caffeine) {
+		CaffeinatedMultikeyCacheBuilder<K, DK, V> res = derive(caffeine);
+		res.removalListener = removalListener;
+		res.keyMapper = keyMapper;
+		res.valueLoader = valueLoader;
+		res.writer = writer;
+		res.writeBehind = writeBehind;
+		res.writeBehindBatchSize = writeBehindBatchSize;
+		res.writeBehindFlushInterval = writeBehindFlushInterval;
+		res.writeBehindMaxPending = writeBehindMaxPending;
+		res.fingerprintEncoder = fingerprintEncoder;
+		res.fingerprintRemovalListener = fingerprintRemovalListener;
+		res.fingerprintSecret = fingerprintSecret;
+		res.keySizer = keySizer;
+		return res;
+	}
+
+	/**
+	 * Constructs a builder for keys of another type with all the settings of this builder
+	 * that do not depend on the key type.
+	 */
+	<K2> CaffeinatedMultikeyCacheBuilder<K2, DK, V> derive(Caffeine<Object, Object> caffeine) {
+		CaffeinatedMultikeyCacheBuilder<K2, DK, V> res = new CaffeinatedMultikeyCacheBuilder<>(caffeine);
+		res.executor = executor;
+		res.scheduler = scheduler;
+		res.ticker = ticker;
+		res.weigher = weigher;
+		res.hedgingPolicy = hedgingPolicy;
+		res.gracePeriod = gracePeriod;
+		res.graceInitialBackoff = graceInitialBackoff;
+		res.traceRecorder = traceRecorder;
+		res.expirationResolution = expirationResolution;
+		res.admissionExpectedKeys = admissionExpectedKeys;
+		res.pinningPredicate = pinningPredicate;
+		res.derivedKeySizer = derivedKeySizer;
+		res.valueSizer = valueSizer;
+		res.maximumFootprint = maximumFootprint;
+		res.aliasRemovalHook = aliasRemovalHook;
+		return res;
+	}
 }
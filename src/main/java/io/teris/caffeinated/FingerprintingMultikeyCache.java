@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+
+/**
+ * Implements AsyncMultikeyCache on top of a CaffeinatedMultikeyCache keyed by alias
+ * fingerprints: every key is replaced by its {@code AliasFingerprint} before reaching the
+ * delegate, and never retained itself. The aliases are indexed in a single flat map from
+ * fingerprints to derived keys, in place of the alias index of the delegate, which only
+ * keeps the fingerprints per derived key for the fan-out of removals and the intermediate
+ * keys of cascades. Key mappers and value loaders are adapted to receive the original key,
+ * which is only referenced while the mapping or loading is in flight, with concurrent
+ * mappings of the same fingerprint shared.
+ * <p>
+ * Fingerprints are 128-bit SipHash values keyed with a secret of this cache, so that
+ * colliding keys cannot be crafted without the secret and accidental collisions are
+ * negligible: a fingerprint found in the index is trusted without mapping the key again.
+ */
+class FingerprintingMultikeyCache<K, DK, V> implements MultikeyCachePartition<K, DK, V> {
+
+	private static class Mapping<DK> {
+
+		final CompletableFuture<DK> future = new CompletableFuture<>();
+
+		volatile boolean invalidated = false;
+	}
+
+	final CaffeinatedMultikeyCache<AliasFingerprint, DK, V> delegate;
+
+	final Map<AliasFingerprint, DK> index = new ConcurrentHashMap<>();
+
+	private final Map<AliasFingerprint, Mapping<DK>> mappings = new ConcurrentHashMap<>();
+
+	private final Function<K, byte[]> keyEncoder;
+
+	private final Function<K, DK> keyMapper;
+
+	private final BiFunction<K, DK, V> valueLoader;
+
+	private final AliasFingerprint.Secret secret;
+
+	FingerprintingMultikeyCache(CaffeinatedMultikeyCacheBuilder<K, DK, V> builder) {
+		CaffeinatedMultikeyCacheBuilder<AliasFingerprint, DK, V> delegateBuilder = builder.derive(builder.caffeine);
+		delegateBuilder.removalListener = builder.fingerprintRemovalListener;
+		Consumer<Object> aliasRemovalHook = builder.aliasRemovalHook;
+		delegateBuilder.aliasRemovalHook = fingerprint -> {
+			index.remove(fingerprint);
+			if (aliasRemovalHook != null) {
+				aliasRemovalHook.accept(fingerprint);
+			}
+		};
+		if (builder.writer != null) {
+			delegateBuilder.writer = new KeylessWriter<>(builder.writer);
+			delegateBuilder.writeBehind = builder.writeBehind;
+			delegateBuilder.writeBehindBatchSize = builder.writeBehindBatchSize;
+			delegateBuilder.writeBehindFlushInterval = builder.writeBehindFlushInterval;
+			delegateBuilder.writeBehindMaxPending = builder.writeBehindMaxPending;
+		}
+		delegate = new CaffeinatedMultikeyCache<>(delegateBuilder);
+		keyEncoder = builder.fingerprintEncoder;
+		keyMapper = builder.keyMapper;
+		valueLoader = builder.valueLoader;
+		secret = builder.fingerprintSecret != null ? builder.fingerprintSecret : AliasFingerprint.Secret.random();
+	}
+
+	@Nonnull
+	@Override
+	public CompletableFuture<V> get(@Nonnull K key, @Nonnull Function<K, DK> keyMapper, @Nonnull BiFunction<K, DK, V> valueLoader) {
+		AliasFingerprint fingerprint = fingerprint(key);
+		BiFunction<AliasFingerprint, DK, V> loader = ($, derivedKey) -> valueLoader.apply(key, derivedKey);
+		DK derivedKey = index.get(fingerprint);
+		if (derivedKey != null) {
+			return delegate.getByAlias(fingerprint, derivedKey, loader);
+		}
+		Mapping<DK> mapping = mappings.get(fingerprint);
+		if (mapping == null) {
+			if (!delegate.admitted(fingerprint)) {
+				// the value is cached as for any other key, only the alias is not registered
+				return delegate.mapUnregistered(fingerprint, adapt(key, keyMapper))
+					.thenCompose(mapped -> delegate.getByDerivedKey(fingerprint, mapped, loader));
+			}
+			mapping = mapping(fingerprint, key, keyMapper);
+		}
+		Mapping<DK> current = mapping;
+		return mapping.future.thenCompose(mapped -> current.invalidated
+			? delegate.getUncached(fingerprint, mapped, loader)
+			: delegate.getByAlias(fingerprint, mapped, loader));
+	}
+
+	@Nonnull
+	@Override
+	public CompletableFuture<V> get(@Nonnull K key) {
+		return get(key, keyMapper, valueLoader);
+	}
+
+	@Nonnull
+	@Override
+	public CompletableFuture<V> get(@Nonnull K key, @Nonnull Function<K, DK> keyMapper, @Nonnull BiFunction<K, DK, V> valueLoader, @Nonnull Duration timeout) {
+		return CaffeinatedMultikeyCache.withTimeout(get(key, keyMapper, valueLoader), timeout, delegate::scheduler);
+	}
+
+	@Nonnull
+	@Override
+	public CompletableFuture<V> get(@Nonnull K key, @Nonnull Duration timeout) {
+		return get(key, keyMapper, valueLoader, timeout);
+	}
+
+	@Nullable
+	@Override
+	public V getIfPresent(@Nonnull K key) {
+		DK derivedKey = index.get(fingerprint(key));
+		return derivedKey != null ? delegate.getByDerivedKeyIfPresent(derivedKey) : null;
+	}
+
+	@Nullable
+	@Override
+	public DK getDerivedKeyIfPresent(@Nonnull K key) {
+		return index.get(fingerprint(key));
+	}
+
+	@Nullable
+	@Override
+	public V getByDerivedKeyIfPresent(@Nonnull DK derivedKey) {
+		return delegate.getByDerivedKeyIfPresent(derivedKey);
+	}
+
+	@Override
+	public void put(@Nonnull DK derivedKey, @Nonnull V value) {
+		delegate.put(derivedKey, value);
+	}
+
+	@Override
+	public void pin(@Nonnull DK derivedKey) {
+		delegate.pin(derivedKey);
+	}
+
+	@Override
+	public void unpin(@Nonnull DK derivedKey) {
+		delegate.unpin(derivedKey);
+	}
+
+	@Override
+	public void invalidate(@Nonnull K key) {
+		AliasFingerprint fingerprint = fingerprint(key);
+		Mapping<DK> mapping = mappings.remove(fingerprint);
+		if (mapping != null) {
+			mapping.invalidated = true;
+			mapping.future.thenAccept(delegate::invalidateDerivedKey);
+		}
+		DK derivedKey = index.remove(fingerprint);
+		if (derivedKey != null) {
+			delegate.invalidateDerivedKey(derivedKey);
+		}
+		delegate.releaseGrace(fingerprint);
+	}
+
+	@Override
+	public void invalidateAll(@Nonnull Iterable<K> keys) {
+		keys.forEach(this::invalidate);
+	}
+
+	@Nonnull
+	@Override
+	public CompletableFuture<V> getUncached(@Nonnull K key, @Nonnull DK derivedKey, @Nonnull BiFunction<K, DK, V> valueLoader) {
+		return delegate.getUncached(fingerprint(key), derivedKey, ($, dk) -> valueLoader.apply(key, dk));
+	}
+
+	@Override
+	public boolean indexes(@Nonnull K key) {
+		AliasFingerprint fingerprint = fingerprint(key);
+		return index.containsKey(fingerprint) || mappings.containsKey(fingerprint);
+	}
+
+	@Nonnull
+	@Override
+	public AsyncLoadingCache<DK, V> valueCache() {
+		return delegate.cache;
+	}
+
+	@Nonnull
+	@Override
+	public GraceStats graceStats() {
+		return delegate.graceStats();
+	}
+
+	@Nonnull
+	@Override
+	public Stream<Entry<K, DK, V>> entries() {
+		// keys are not retained, only their fingerprints
+		return delegate.entries().map(entry -> new Entry<>(entry.derivedKey(), entry.value(), Collections.emptySet()));
+	}
+
+	@Nonnull
+	@Override
+	public Footprint footprint() {
+		return delegate.footprint();
+	}
+
+	@Override
+	public void close() {
+		delegate.close();
+	}
+
+	/**
+	 * Adapts the key mapper to the fingerprint; for cascades only the first stage is
+	 * adapted to keep resolving further stages via the alias index.
+	 */
+	private Function<AliasFingerprint, DK> adapt(K key, Function<K, DK> keyMapper) {
+		if (keyMapper instanceof KeyCascade) {
+			KeyCascade<K, DK> cascade = (KeyCascade<K, DK>) keyMapper;
+			return cascade.withFirstStage($ -> cascade.applyStage(0, key));
+		}
+		return $ -> keyMapper.apply(key);
+	}
+
+	/**
+	 * Maps the fingerprint unless a mapping is in flight already; the alias is indexed on
+	 * completion unless invalidated meanwhile, before the mapping is passed on.
+	 */
+	private Mapping<DK> mapping(AliasFingerprint fingerprint, K key, Function<K, DK> keyMapper) {
+		Mapping<DK> res = new Mapping<>();
+		Mapping<DK> existing = mappings.putIfAbsent(fingerprint, res);
+		if (existing != null) {
+			return existing;
+		}
+		delegate.mapUnregistered(fingerprint, adapt(key, keyMapper)).whenComplete((derivedKey, t) -> {
+			if (t == null && !res.invalidated) {
+				index.put(fingerprint, derivedKey);
+				delegate.registerAlias(fingerprint, derivedKey);
+			}
+			mappings.remove(fingerprint, res);
+			if (t != null) {
+				res.future.completeExceptionally(t);
+			} else {
+				res.future.complete(derivedKey);
+			}
+		});
+		return res;
+	}
+
+	AliasFingerprint fingerprint(K key) {
+		return secret.fingerprint(keyEncoder.apply(key));
+	}
+
+	private static class KeylessWriter<K, DK, V> implements MultikeyCacheWriter<AliasFingerprint, DK, V> {
+
+		private final MultikeyCacheWriter<K, DK, V> writer;
+
+		KeylessWriter(MultikeyCacheWriter<K, DK, V> writer) {
+			this.writer = writer;
+		}
+
+		@Override
+		public void write(@Nonnull DK derivedKey, @Nonnull V value) {
+			writer.write(derivedKey, value);
+		}
+
+		@Override
+		public void writeAll(@Nonnull Map<DK, V> entries) {
+			writer.writeAll(entries);
+		}
+
+		@Override
+		public void delete(@Nonnull DK derivedKey, @Nullable V value, @Nonnull Set<AliasFingerprint> keys, @Nonnull RemovalCause cause) {
+			writer.delete(derivedKey, value, Collections.emptySet(), cause);
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+
+/**
+ * Footprint is a snapshot of the estimated heap footprint of a multikey cache per tier:
+ * the values with their derived keys, the aliases mapping keys to derived keys, and the
+ * alias sets mapping derived keys back to their keys. Estimates include the overhead of
+ * the cache entries and are extrapolated from sampled object sizes.
+ */
+@Immutable
+public final class Footprint {
+
+	static final Footprint EMPTY = new Footprint(0, 0, 0, 0, 0);
+
+	private final long valueCount;
+
+	private final long valueBytes;
+
+	private final long aliasCount;
+
+	private final long aliasBytes;
+
+	private final long aliasSetBytes;
+
+	Footprint(long valueCount, long valueBytes, long aliasCount, long aliasBytes, long aliasSetBytes) {
+		this.valueCount = valueCount;
+		this.valueBytes = valueBytes;
+		this.aliasCount = aliasCount;
+		this.aliasBytes = aliasBytes;
+		this.aliasSetBytes = aliasSetBytes;
+	}
+
+	/**
+	 * @return the number of cached values, including pinned ones
+	 */
+	public long valueCount() {
+		return valueCount;
+	}
+
+	/**
+	 * @return the estimated bytes held by values and their derived keys
+	 */
+	public long valueBytes() {
+		return valueBytes;
+	}
+
+	/**
+	 * @return the number of keys aliasing derived keys
+	 */
+	public long aliasCount() {
+		return aliasCount;
+	}
+
+	/**
+	 * @return the estimated bytes held by the mapping of keys to derived keys
+	 */
+	public long aliasBytes() {
+		return aliasBytes;
+	}
+
+	/**
+	 * @return the estimated bytes held by the mapping of derived keys to sets of keys
+	 */
+	public long aliasSetBytes() {
+		return aliasSetBytes;
+	}
+
+	/**
+	 * @return the estimated bytes held by all tiers
+	 */
+	public long totalBytes() {
+		return valueBytes + aliasBytes + aliasSetBytes;
+	}
+
+	@Nonnull
+	Footprint plus(@Nonnull Footprint other) {
+		return new Footprint(valueCount + other.valueCount, valueBytes + other.valueBytes,
+			aliasCount + other.aliasCount, aliasBytes + other.aliasBytes, aliasSetBytes + other.aliasSetBytes);
+	}
+
+	@Override
+	public String toString() {
+		return "Footprint{valueCount=" + valueCount + ", valueBytes=" + valueBytes + ", aliasCount=" + aliasCount
+			+ ", aliasBytes=" + aliasBytes + ", aliasSetBytes=" + aliasSetBytes + "}";
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+
+/**
+ * Tracks the heap footprint of the cache tiers incrementally: entry counts are updated on
+ * every insertion and removal, while object sizes are sampled with the sizers, all of
+ * the first objects and one in sixteen thereafter, and extrapolated by their mean. The
+ * intermediate keys of cascades are internal to the cache: they are counted as aliases,
+ * but sized by estimate and never passed to the key sizer.
+ */
+@ThreadSafe
+class FootprintTracker<K, DK, V> {
+
+	// caffeine node with access and write order links, and the completed future of the async cache
+	static final long VALUE_ENTRY_OVERHEAD = 120;
+
+	// caffeine node and the completed future holding the derived key
+	static final long ALIAS_ENTRY_OVERHEAD = 112;
+
+	// caffeine node and the concurrent key set with its initial table
+	static final long ALIAS_SET_OVERHEAD = 176;
+
+	// node of the concurrent key set referencing the key
+	static final long ALIAS_SET_NODE_OVERHEAD = 32;
+
+	private static final int FULLY_SAMPLED = 1024;
+
+	private static final int SAMPLING_RATE = 16;
+
+	private final SampledSize<K> keySizes;
+
+	private final SampledSize<Object> stageKeySizes = new SampledSize<>(null);
+
+	private final SampledSize<DK> derivedKeySizes;
+
+	private final SampledSize<V> valueSizes;
+
+	private final LongAdder valueCount = new LongAdder();
+
+	private final LongAdder aliasCount = new LongAdder();
+
+	private final LongAdder stageAliasCount = new LongAdder();
+
+	private final LongAdder aliasSetCount = new LongAdder();
+
+	FootprintTracker(@Nullable Sizer<K> keySizer, @Nullable Sizer<DK> derivedKeySizer, @Nullable Sizer<V> valueSizer) {
+		keySizes = new SampledSize<>(keySizer);
+		derivedKeySizes = new SampledSize<>(derivedKeySizer);
+		valueSizes = new SampledSize<>(valueSizer);
+	}
+
+	void valueAdded(@Nonnull DK derivedKey, @Nullable V value) {
+		valueCount.increment();
+		derivedKeySizes.sample(derivedKey);
+		if (value != null) {
+			valueSizes.sample(value);
+		}
+	}
+
+	void valueRemoved() {
+		valueCount.decrement();
+	}
+
+	@SuppressWarnings("unchecked")
+	void aliasAdded(@Nonnull Object key) {
+		if (key instanceof KeyCascade.StageKey) {
+			stageAliasCount.increment();
+			stageKeySizes.sample(key);
+		} else {
+			aliasCount.increment();
+			keySizes.sample((K) key);
+		}
+	}
+
+	void aliasesRemoved(@Nonnull Collection<?> keys) {
+		int stageKeys = 0;
+		for (Object key : keys) {
+			if (key instanceof KeyCascade.StageKey) {
+				stageKeys++;
+			}
+		}
+		aliasCount.add(stageKeys - keys.size());
+		stageAliasCount.add(-stageKeys);
+	}
+
+	void aliasSetAdded() {
+		aliasSetCount.increment();
+	}
+
+	void aliasSetRemoved() {
+		aliasSetCount.decrement();
+	}
+
+	@Nonnull
+	Footprint footprint() {
+		long values = Math.max(0L, valueCount.sum());
+		long keyAliases = Math.max(0L, aliasCount.sum());
+		long stageAliases = Math.max(0L, stageAliasCount.sum());
+		long aliases = keyAliases + stageAliases;
+		long aliasSets = Math.max(0L, aliasSetCount.sum());
+		return new Footprint(
+			values, values * (VALUE_ENTRY_OVERHEAD + derivedKeySizes.mean() + valueSizes.mean()),
+			aliases, aliases * ALIAS_ENTRY_OVERHEAD + keyAliases * keySizes.mean() + stageAliases * stageKeySizes.mean(),
+			aliasSets * ALIAS_SET_OVERHEAD + aliases * ALIAS_SET_NODE_OVERHEAD);
+	}
+
+	/**
+	 * Estimates the shallow size of common key and value types, including the arrays of
+	 * strings and the elements of collections, and assumes a small object otherwise.
+	 */
+	static long estimate(@Nonnull Object object) {
+		if (object instanceof String) {
+			return align(24) + align(16 + 2L * ((String) object).length());
+		}
+		if (object instanceof byte[]) {
+			return align(16 + ((byte[]) object).length);
+		}
+		if (object instanceof Number || object instanceof Boolean || object instanceof Character) {
+			return 24;
+		}
+		if (object instanceof UUID || object instanceof AliasFingerprint) {
+			return 32;
+		}
+		if (object instanceof KeyCascade.StageKey) {
+			return 24 + estimate(((KeyCascade.StageKey) object).key);
+		}
+		if (object instanceof Collection) {
+			return 64 + 32L * ((Collection<?>) object).size();
+		}
+		if (object instanceof Map) {
+			return 64 + 48L * ((Map<?, ?>) object).size();
+		}
+		return 64;
+	}
+
+	private static long align(long size) {
+		return (size + 7) & ~7L;
+	}
+
+	private static class SampledSize<T> {
+
+		private final Sizer<T> sizer;
+
+		private final AtomicLong samples = new AtomicLong(0);
+
+		private final AtomicLong bytes = new AtomicLong(0);
+
+		SampledSize(@Nullable Sizer<T> sizer) {
+			this.sizer = sizer != null ? sizer : FootprintTracker::estimate;
+		}
+
+		void sample(T object) {
+			if (samples.get() < FULLY_SAMPLED || ThreadLocalRandom.current().nextInt(SAMPLING_RATE) == 0) {
+				bytes.addAndGet(sizer.sizeOf(object));
+				samples.incrementAndGet();
+			}
+		}
+
+		long mean() {
+			long count = samples.get();
+			return count > 0 ? bytes.get() / count : 0L;
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+
+/**
+ * A count-min sketch estimating the frequency of keys with 4-bit counters, in the
+ * manner of TinyLFU: every key is counted in four counters selected by independent hashes,
+ * sixteen counters packed into a long, and its frequency is the minimum of the four. To age
+ * the history all counters are halved once the number of increments reaches ten times the
+ * expected number of keys, so that keys seen once long ago fade out.
+ * <p>
+ * Counters are updated lock-free; an increment racing with a reset may be lost, which is
+ * acceptable for an estimate.
+ */
+@ThreadSafe
+class FrequencySketch {
+
+	private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	private static final int MAX_COUNT = 15;
+
+	private final AtomicLongArray table;
+
+	private final int tableMask;
+
+	private final int sampleSize;
+
+	private final AtomicInteger size = new AtomicInteger(0);
+
+	private final AtomicBoolean resetting = new AtomicBoolean(false);
+
+	FrequencySketch(int expectedKeys) {
+		if (expectedKeys <= 0) {
+			throw new IllegalArgumentException("expected number of keys must be positive");
+		}
+		int length = Integer.highestOneBit(Math.min(Math.max(expectedKeys, 16), 1 << 30) - 1) << 1;
+		table = new AtomicLongArray(length);
+		tableMask = length - 1;
+		sampleSize = expectedKeys <= Integer.MAX_VALUE / 10 ? 10 * expectedKeys : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Counts the key and returns its estimated frequency including this occurrence.
+	 */
+	int increment(@Nonnull Object key) {
+		int hash = spread(key.hashCode());
+		int start = (hash & 3) << 2;
+		int res = MAX_COUNT;
+		for (int i = 0; i < 4; i++) {
+			res = Math.min(res, incrementAt(indexOf(hash, i), start + i));
+		}
+		if (size.incrementAndGet() >= sampleSize) {
+			reset();
+		}
+		return res;
+	}
+
+	/**
+	 * Returns the estimated frequency of the key.
+	 */
+	int frequency(@Nonnull Object key) {
+		int hash = spread(key.hashCode());
+		int start = (hash & 3) << 2;
+		int res = MAX_COUNT;
+		for (int i = 0; i < 4; i++) {
+			int shift = (start + i) << 2;
+			res = Math.min(res, (int) ((table.get(indexOf(hash, i)) >>> shift) & 0xfL));
+		}
+		return res;
+	}
+
+	private int incrementAt(int index, int counter) {
+		int shift = counter << 2;
+		long mask = 0xfL << shift;
+		while (true) {
+			long word = table.get(index);
+			int count = (int) ((word & mask) >>> shift);
+			if (count == MAX_COUNT) {
+				return count;
+			}
+			if (table.compareAndSet(index, word, word + (1L << shift))) {
+				return count + 1;
+			}
+		}
+	}
+
+	private void reset() {
+		if (resetting.compareAndSet(false, true)) {
+			try {
+				for (int i = 0; i < table.length(); i++) {
+					long word;
+					do {
+						word = table.get(i);
+					} while (!table.compareAndSet(i, word, (word >>> 1) & RESET_MASK));
+				}
+				size.updateAndGet(current -> current / 2);
+			} finally {
+				resetting.set(false);
+			}
+		}
+	}
+
+	private int indexOf(int hash, int i) {
+		long res = (hash + SEEDS[i]) * SEEDS[i];
+		res += res >>> 32;
+		return ((int) res) & tableMask;
+	}
+
+	private static int spread(int x) {
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+}
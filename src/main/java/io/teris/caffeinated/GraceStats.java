@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated;
+
+import java.time.Duration;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+
+/**
+ * GraceStats is a snapshot of the stale-if-error grace tier statistics: how often stale
+ * values were served in place of failed loads, how many background reloads were attempted
+ * and succeeded, and how stale the retained values are.
+ */
+@Immutable
+public final class GraceStats {
+
+	static final GraceStats EMPTY = new GraceStats(0, 0, 0, 0, Duration.ZERO);
+
+	private final long staleServedCount;
+
+	private final long retryCount;
+
+	private final long recoveredCount;
+
+	private final long retainedCount;
+
+	private final Duration maxStaleness;
+
+	GraceStats(long staleServedCount, long retryCount, long recoveredCount, long retainedCount, Duration maxStaleness) {
+		this.staleServedCount = staleServedCount;
+		this.retryCount = retryCount;
+		this.recoveredCount = recoveredCount;
+		this.retainedCount = retainedCount;
+		this.maxStaleness = maxStaleness;
+	}
+
+	/**
+	 * @return the number of times a stale value was served because loading failed
+	 */
+	public long staleServedCount() {
+		return staleServedCount;
+	}
+
+	/**
+	 * @return the number of background reload attempts for retained values
+	 */
+	public long retryCount() {
+		return retryCount;
+	}
+
+	/**
+	 * @return the number of retained values successfully reloaded in the background
+	 */
+	public long recoveredCount() {
+		return recoveredCount;
+	}
+
+	/**
+	 * @return the number of evicted values currently retained in the grace tier
+	 */
+	public long retainedCount() {
+		return retainedCount;
+	}
+
+	/**
+	 * @return the time since eviction of the oldest value currently retained
+	 */
+	@Nonnull
+	public Duration maxStaleness() {
+		return maxStaleness;
+	}
+
+	@Nonnull
+	GraceStats plus(@Nonnull GraceStats other) {
+		return new GraceStats(staleServedCount + other.staleServedCount, retryCount + other.retryCount,
+			recoveredCount + other.recoveredCount, retainedCount + other.retainedCount,
+			maxStaleness.compareTo(other.maxStaleness) >= 0 ? maxStaleness : other.maxStaleness);
+	}
+
+	@Override
+	public String toString() {
+		return "GraceStats{staleServedCount=" + staleServedCount + ", retryCount=" + retryCount
+			+ ", recoveredCount=" + recoveredCount + ", retainedCount=" + retainedCount
+			+ ", maxStaleness=" + maxStaleness + "}";
+	}
+}
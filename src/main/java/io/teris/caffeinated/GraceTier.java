@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.github.benmanes.caffeine.cache.Weigher;
+
+
+/**
+ * Retains evicted values together with their keys for a grace period, so that they can be
+ * served in place of failed loads (stale-if-error). Serving a retained value starts a
+ * background reload retried with jittered exponential backoff until it succeeds or the
+ * grace period of the value is over. Successfully reloaded values are handed back to the
+ * cache via the {@code Recovery} callback without their keys. The keys of retained values
+ * are only indexed to release the values on explicit invalidation of any of them.
+ * <p>
+ * The tier is bounded like the cache it retains values of, by the same maximum size or
+ * maximum weight with the same weigher, so that eviction churn cannot retain more than the
+ * cache itself could hold, and follows the ticker set on the multikey cache builder.
+ */
+class GraceTier<K, DK, V> {
+
+	interface Recovery<DK, V> {
+
+		void recovered(@Nonnull DK derivedKey, @Nonnull V value);
+	}
+
+	static class Retained<K, V> {
+
+		final V value;
+
+		final Set<K> keys;
+
+		final long evictedAtNanos;
+
+		Retained(V value, Set<K> keys, long evictedAtNanos) {
+			this.value = value;
+			this.keys = keys;
+			this.evictedAtNanos = evictedAtNanos;
+		}
+	}
+
+	private final Cache<DK, Retained<K, V>> retained;
+
+	private final Cache<K, DK> keys2derivedKey;
+
+	private final Ticker ticker;
+
+	private final Set<DK> reloading = ConcurrentHashMap.newKeySet();
+
+	private final long initialBackoffNanos;
+
+	private final long maxBackoffNanos;
+
+	private final Executor executor;
+
+	private final Supplier<ScheduledExecutorService> scheduler;
+
+	private final Recovery<DK, V> recovery;
+
+	private final LongAdder staleServedCount = new LongAdder();
+
+	private final LongAdder retryCount = new LongAdder();
+
+	private final LongAdder recoveredCount = new LongAdder();
+
+	/**
+	 * @param maximum the maximum size or weight of the cache or 0 if unbounded
+	 * @param weigher the weigher of the cache or null if bounded by size
+	 */
+	GraceTier(Duration gracePeriod, Duration initialBackoff, long maximum, @Nullable Weigher<DK, V> weigher, Ticker ticker,
+		Executor executor, Supplier<ScheduledExecutorService> scheduler, Recovery<DK, V> recovery) {
+		this.ticker = ticker;
+		keys2derivedKey = Caffeine.newBuilder()
+			.executor(executor)
+			.ticker(ticker)
+			.expireAfterWrite(gracePeriod.toNanos(), TimeUnit.NANOSECONDS)
+			.build();
+		Caffeine<Object, Object> caffeine = Caffeine.newBuilder()
+			.executor(executor)
+			.ticker(ticker)
+			.expireAfterWrite(gracePeriod.toNanos(), TimeUnit.NANOSECONDS);
+		if (maximum > 0 && weigher != null) {
+			caffeine.maximumWeight(maximum)
+				.weigher((DK derivedKey, Retained<K, V> entry) -> weigher.weigh(derivedKey, entry.value));
+		} else if (maximum > 0) {
+			caffeine.maximumSize(maximum);
+		}
+		retained = caffeine
+			.removalListener((DK derivedKey, Retained<K, V> entry, RemovalCause cause) -> {
+				if (entry != null && cause.wasEvicted()) {
+					keys2derivedKey.invalidateAll(entry.keys);
+				}
+			})
+			.build();
+		this.initialBackoffNanos = initialBackoff.toNanos();
+		this.maxBackoffNanos = Math.max(initialBackoffNanos, gracePeriod.toNanos() / 4);
+		this.executor = executor;
+		this.scheduler = scheduler;
+		this.recovery = recovery;
+	}
+
+	void retain(@Nonnull DK derivedKey, @Nonnull V value, @Nonnull Set<K> keys) {
+		retained.put(derivedKey, new Retained<>(value, keys, ticker.read()));
+		keys.forEach(key -> keys2derivedKey.put(key, derivedKey));
+	}
+
+	@Nullable
+	DK derivedKeyOf(@Nonnull K key) {
+		return keys2derivedKey.getIfPresent(key);
+	}
+
+	/**
+	 * Returns the retained value for the derived key, if any, counting it as served stale
+	 * and starting a background reload via the loader unless one is already running.
+	 */
+	@Nullable
+	V serveStale(@Nonnull K key, @Nonnull DK derivedKey, @Nonnull BiFunction<K, DK, V> valueLoader) {
+		Retained<K, V> entry = retained.getIfPresent(derivedKey);
+		if (entry == null) {
+			return null;
+		}
+		staleServedCount.increment();
+		if (reloading.add(derivedKey)) {
+			scheduleReload(key, derivedKey, valueLoader, 0);
+		}
+		return entry.value;
+	}
+
+	void release(@Nonnull DK derivedKey) {
+		Retained<K, V> entry = retained.getIfPresent(derivedKey);
+		retained.invalidate(derivedKey);
+		if (entry != null) {
+			keys2derivedKey.invalidateAll(entry.keys);
+		}
+	}
+
+	@Nonnull
+	GraceStats stats() {
+		long now = ticker.read();
+		long maxStalenessNanos = 0;
+		for (Retained<K, V> entry : retained.asMap().values()) {
+			maxStalenessNanos = Math.max(maxStalenessNanos, now - entry.evictedAtNanos);
+		}
+		return new GraceStats(staleServedCount.sum(), retryCount.sum(), recoveredCount.sum(),
+			retained.estimatedSize(), Duration.ofNanos(maxStalenessNanos));
+	}
+
+	private void scheduleReload(K key, DK derivedKey, BiFunction<K, DK, V> valueLoader, int attempt) {
+		long backoff = attempt < 62 && initialBackoffNanos <= maxBackoffNanos >> attempt
+			? initialBackoffNanos << attempt
+			: maxBackoffNanos;
+		// equal jitter: at least half the backoff to avoid hammering a recovering backend
+		long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+		scheduler.get().schedule(() -> CompletableFuture
+			.supplyAsync(() -> {
+				retryCount.increment();
+				return valueLoader.apply(key, derivedKey);
+			}, executor)
+			.whenComplete((value, t) -> {
+				Retained<K, V> entry = retained.getIfPresent(derivedKey);
+				if (entry == null) {
+					reloading.remove(derivedKey);
+				} else if (t == null && value != null) {
+					release(derivedKey);
+					reloading.remove(derivedKey);
+					recoveredCount.increment();
+					recovery.recovered(derivedKey, value);
+				} else {
+					scheduleReload(key, derivedKey, valueLoader, attempt + 1);
+				}
+			}), delay, TimeUnit.NANOSECONDS);
+	}
+}
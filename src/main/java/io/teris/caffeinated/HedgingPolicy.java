@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated;
+
+import java.time.Duration;
+import java.util.Objects;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+
+/**
+ * HedgingPolicy defines when a second, hedged attempt of the value loader is started
+ * while the first one is still in flight. Whichever attempt completes successfully first
+ * provides the value; the result of the other one is discarded. Value loaders used with
+ * hedging must therefore be idempotent.
+ * <p>
+ * The delay before hedging is either fixed or follows a percentile of the recently
+ * observed loader latencies, e.g. starting a hedged attempt for loads running longer than
+ * 95% of the loads observed so far.
+ */
+@Immutable
+public final class HedgingPolicy {
+
+	private final double percentile;
+
+	private final Duration delay;
+
+	private HedgingPolicy(double percentile, Duration delay) {
+		this.percentile = percentile;
+		this.delay = delay;
+	}
+
+	/**
+	 * Constructs a policy starting a hedged attempt after a fixed delay.
+	 *
+	 * @param delay the delay after which the hedged attempt is started
+	 * @return the policy
+	 */
+	@Nonnull
+	public static HedgingPolicy fixedDelay(@Nonnull Duration delay) {
+		return new HedgingPolicy(Double.NaN, requireDelay(delay));
+	}
+
+	/**
+	 * Constructs a policy starting a hedged attempt once the load has taken longer than the
+	 * given percentile of recently observed loader latencies. The {@code initialDelay} is
+	 * used until enough latencies have been observed.
+	 *
+	 * @param percentile the latency percentile in the range (0, 100), e.g. 95 or 99.9
+	 * @param initialDelay the delay used before enough latencies are observed
+	 * @return the policy
+	 */
+	@Nonnull
+	public static HedgingPolicy percentile(double percentile, @Nonnull Duration initialDelay) {
+		if (!(percentile > 0.0 && percentile < 100.0)) {
+			throw new IllegalArgumentException("percentile must be in the range (0, 100)");
+		}
+		return new HedgingPolicy(percentile, requireDelay(initialDelay));
+	}
+
+	private static Duration requireDelay(Duration delay) {
+		Objects.requireNonNull(delay, "delay must not be null");
+		if (delay.isNegative()) {
+			throw new IllegalArgumentException("delay must not be negative");
+		}
+		return delay;
+	}
+
+	boolean isAdaptive() {
+		return !Double.isNaN(percentile);
+	}
+
+	double percentile() {
+		return percentile;
+	}
+
+	Duration delay() {
+		return delay;
+	}
+}
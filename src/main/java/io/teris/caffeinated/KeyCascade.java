@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+
+/**
+ * KeyCascade defines a key mapper composed of any number of mapping stages, e.g.
+ * token -> session ID -> user ID, where the last stage yields the derived key:
+ * <pre>
+ *   KeyCascade&lt;String, Long&gt; cascade = KeyCascade.of(tokenDao::sessionIdFor).then(sessionDao::userIdFor);
+ * </pre>
+ * Used as a key mapper on its own, a cascade simply applies all stages in turn. The
+ * multikey cache, however, resolves a cascade stage by stage: every intermediate key is
+ * cached as an alias of the final derived key in the same alias index, so that a stage is
+ * only mapped on a miss at that stage, all levels share one value tier, and evicting the
+ * value evicts the aliases at all levels at once. Intermediate keys are never passed to the
+ * removal listener or the writer.
+ *
+ * @param <K> the type of keys the cascade starts from
+ * @param <DK> the type of derived keys the cascade resolves to
+ */
+@Immutable
+public final class KeyCascade<K, DK> implements Function<K, DK> {
+
+	private final List<Function<Object, Object>> stages;
+
+	private KeyCascade(List<Function<Object, Object>> stages) {
+		this.stages = stages;
+	}
+
+	/**
+	 * Constructs a single-stage cascade.
+	 *
+	 * @param mapper the first mapping stage
+	 * @param <K> the type of keys the cascade starts from
+	 * @param <DK> the type of keys the stage maps to
+	 * @return the cascade
+	 */
+	@Nonnull
+	@SuppressWarnings("unchecked")
+	public static <K, DK> KeyCascade<K, DK> of(@Nonnull Function<K, DK> mapper) {
+		Objects.requireNonNull(mapper, "mapper must not be null");
+		return new KeyCascade<>(Collections.singletonList((Function<Object, Object>) mapper));
+	}
+
+	/**
+	 * Constructs a cascade with a further mapping stage appended.
+	 *
+	 * @param mapper the next mapping stage
+	 * @param <NDK> the type of keys the next stage maps to
+	 * @return the extended cascade
+	 */
+	@Nonnull
+	@SuppressWarnings("unchecked")
+	public <NDK> KeyCascade<K, NDK> then(@Nonnull Function<DK, NDK> mapper) {
+		Objects.requireNonNull(mapper, "mapper must not be null");
+		List<Function<Object, Object>> res = new ArrayList<>(stages);
+		res.add((Function<Object, Object>) mapper);
+		return new KeyCascade<>(Collections.unmodifiableList(res));
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public DK apply(K key) {
+		Object res = key;
+		for (Function<Object, Object> stage : stages) {
+			res = stage.apply(res);
+		}
+		return (DK) res;
+	}
+
+	int size() {
+		return stages.size();
+	}
+
+	Object applyStage(int stage, Object input) {
+		return stages.get(stage).apply(input);
+	}
+
+	/**
+	 * Constructs a cascade with the first stage replaced, keeping all further stages.
+	 */
+	@SuppressWarnings("unchecked")
+	<K2> KeyCascade<K2, DK> withFirstStage(Function<K2, ?> mapper) {
+		List<Function<Object, Object>> res = new ArrayList<>(stages);
+		res.set(0, (Function<Object, Object>) mapper);
+		return new KeyCascade<>(Collections.unmodifiableList(res));
+	}
+
+	/**
+	 * The alias of an intermediate key: the key is wrapped with its stage, so that it
+	 * cannot collide with original keys or intermediate keys of other stages.
+	 */
+	static final class StageKey {
+
+		final int stage;
+
+		final Object key;
+
+		StageKey(int stage, Object key) {
+			this.stage = stage;
+			this.key = key;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof StageKey)) {
+				return false;
+			}
+			StageKey that = (StageKey) o;
+			return stage == that.stage && key.equals(that.key);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * stage + key.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return "stage" + stage + ":" + key;
+		}
+	}
+}
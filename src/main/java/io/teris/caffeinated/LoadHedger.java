@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+import javax.annotation.Nonnull;
+
+
+/**
+ * Runs value loads according to a {@code HedgingPolicy}: a load is started on the executor
+ * and, if still incomplete after the hedging delay, a second attempt is started. The
+ * returned future completes with the first successful result, or exceptionally once all
+ * attempts have failed.
+ * <p>
+ * For adaptive policies the latencies of successful primary attempts are recorded in a
+ * fixed-size ring and the hedging delay is recomputed from it every {@code RECOMPUTE_EVERY}
+ * samples. Hedged attempts are not recorded, also when they win, as they would pull the
+ * percentile down and make hedging ever more frequent.
+ */
+class LoadHedger {
+
+	static final int SAMPLES = 1024;
+
+	static final int RECOMPUTE_EVERY = 128;
+
+	private final HedgingPolicy policy;
+
+	private final Executor executor;
+
+	private final Supplier<ScheduledExecutorService> scheduler;
+
+	private final AtomicLongArray samples = new AtomicLongArray(SAMPLES);
+
+	private final AtomicLong sampleCount = new AtomicLong(0);
+
+	private volatile long delayNanos;
+
+	LoadHedger(HedgingPolicy policy, Executor executor, Supplier<ScheduledExecutorService> scheduler) {
+		this.policy = policy;
+		this.executor = executor;
+		this.scheduler = scheduler;
+		this.delayNanos = policy.delay().toNanos();
+	}
+
+	@Nonnull
+	<V> CompletableFuture<V> load(@Nonnull Supplier<V> loader) {
+		CompletableFuture<V> res = new CompletableFuture<>();
+		AtomicInteger pending = new AtomicInteger(1);
+		long start = System.nanoTime();
+		attempt(loader, res, pending, true, start);
+		ScheduledFuture<?> hedge = scheduler.get().schedule(() -> {
+			// only hedge if no attempt has completed the result and the primary has not failed
+			if (!res.isDone() && pending.updateAndGet(n -> n == 0 ? 0 : n + 1) > 0) {
+				attempt(loader, res, pending, false, start);
+			}
+		}, delayNanos, TimeUnit.NANOSECONDS);
+		res.whenComplete(($, $$) -> hedge.cancel(false));
+		return res;
+	}
+
+	long delayNanos() {
+		return delayNanos;
+	}
+
+	/**
+	 * Runs an attempt of the load; only the primary attempt records its latency, measured
+	 * from the start of the load, also if a hedged attempt has provided the value already.
+	 */
+	private <V> void attempt(Supplier<V> loader, CompletableFuture<V> res, AtomicInteger pending, boolean primary, long start) {
+		CompletableFuture.supplyAsync(loader, executor).whenComplete((v, t) -> {
+			if (t == null) {
+				if (primary) {
+					record(System.nanoTime() - start);
+				}
+				res.complete(v);
+			} else if (pending.decrementAndGet() == 0) {
+				res.completeExceptionally(t);
+			}
+		});
+	}
+
+	private void record(long latencyNanos) {
+		if (!policy.isAdaptive()) {
+			return;
+		}
+		long n = sampleCount.getAndIncrement();
+		samples.set((int) (n % SAMPLES), latencyNanos);
+		if ((n + 1) % RECOMPUTE_EVERY == 0) {
+			int size = (int) Math.min(n + 1, SAMPLES);
+			long[] sorted = new long[size];
+			for (int i = 0; i < size; i++) {
+				sorted[i] = samples.get(i);
+			}
+			Arrays.sort(sorted);
+			int index = (int) Math.ceil(policy.percentile() / 100.0 * size) - 1;
+			delayNanos = sorted[Math.max(0, Math.min(size - 1, index))];
+		}
+	}
+}
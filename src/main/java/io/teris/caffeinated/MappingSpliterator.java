@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import javax.annotation.Nonnull;
+
+
+/**
+ * A spliterator mapping the elements of another one, splitting whenever the underlying
+ * spliterator splits. The size is only reported as an estimate, as the sizes of caffeine
+ * views include values still loading, which are skipped.
+ */
+class MappingSpliterator<T, R> implements Spliterator<R> {
+
+	private final Spliterator<T> spliterator;
+
+	private final Function<T, R> mapper;
+
+	MappingSpliterator(@Nonnull Spliterator<T> spliterator, @Nonnull Function<T, R> mapper) {
+		this.spliterator = spliterator;
+		this.mapper = mapper;
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super R> action) {
+		return spliterator.tryAdvance(element -> action.accept(mapper.apply(element)));
+	}
+
+	@Override
+	public void forEachRemaining(Consumer<? super R> action) {
+		spliterator.forEachRemaining(element -> action.accept(mapper.apply(element)));
+	}
+
+	@Override
+	public Spliterator<R> trySplit() {
+		Spliterator<T> res = spliterator.trySplit();
+		return res != null ? new MappingSpliterator<>(res, mapper) : null;
+	}
+
+	@Override
+	public long estimateSize() {
+		return spliterator.estimateSize();
+	}
+
+	@Override
+	public int characteristics() {
+		return (spliterator.characteristics() & (DISTINCT | CONCURRENT)) | NONNULL;
+	}
+}
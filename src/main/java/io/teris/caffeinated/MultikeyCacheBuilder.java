@@ -4,13 +4,22 @@
 
 package io.teris.caffeinated;
 
+import java.time.Duration;
 import java.util.Set;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
 import java.util.function.Function;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.RemovalListener;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.github.benmanes.caffeine.cache.Weigher;
+
+import io.teris.caffeinated.trace.TraceRecorder;
 
 
 /**
@@ -68,6 +77,204 @@ public interface MultikeyCacheBuilder<K, DK, V> {
 	@Nonnull
 	MultikeyCacheBuilder<K, DK, V> executor(@Nonnull Executor executor);
 
+	/**
+	 * Sets the scheduler for time-triggered background activities such as periodic
+	 * write-behind flushes. By default the cache creates a single daemon thread on demand
+	 * and shuts it down on close; a scheduler set explicitly is never shut down by the cache.
+	 *
+	 * @param scheduler the scheduler to use
+	 * @return the updated builder
+	 */
+	@Nonnull
+	MultikeyCacheBuilder<K, DK, V> scheduler(@Nonnull ScheduledExecutorService scheduler);
+
+	/**
+	 * Sets the time source of the tiers maintained besides the caffeine cache, that is the
+	 * stale-if-error grace tier and proactive expiration. Caffeine does not expose the
+	 * ticker of its builder, so a ticker set there must be set here as well for these tiers
+	 * to follow it. Defaults to the system ticker.
+	 *
+	 * @param ticker the ticker of the caffeine builder
+	 * @return the updated builder
+	 */
+	@Nonnull
+	MultikeyCacheBuilder<K, DK, V> ticker(@Nonnull Ticker ticker);
+
+	/**
+	 * Sets the weigher bounding the stale-if-error grace tier by the maximum weight of the
+	 * cache. Caffeine does not expose the weigher of its builder, so the weigher set there
+	 * must be set here as well if the cache is bounded by weight and has a grace tier.
+	 *
+	 * @param weigher the weigher of the caffeine builder
+	 * @return the updated builder
+	 */
+	@Nonnull
+	MultikeyCacheBuilder<K, DK, V> weigher(@Nonnull Weigher<DK, V> weigher);
+
+	/**
+	 * Registers a writer propagating values put into the cache, and removals, to a backing
+	 * store synchronously (write-through).
+	 *
+	 * @param writer the writer to register
+	 * @return the updated builder
+	 */
+	@Nonnull
+	MultikeyCacheBuilder<K, DK, V> writer(@Nonnull MultikeyCacheWriter<K, DK, V> writer);
+
+	/**
+	 * Registers a writer propagating values put into the cache, and removals, to a backing
+	 * store asynchronously (write-behind). Pending operations are coalesced per derived key,
+	 * except that the eviction of a value does not undo its pending write, and flushed in
+	 * the background in batches of up to {@code batchSize} once that many are pending or
+	 * every {@code flushInterval}. Failed flushes are retried with a backoff capped at the
+	 * flush interval. Once {@code maxPending} derived keys are pending, puts for further
+	 * derived keys are rejected and deletes for them dropped. Pending operations are flushed
+	 * on close.
+	 *
+	 * @param writer the writer to register
+	 * @param batchSize the number of pending derived keys triggering a flush and the maximum
+	 *                  number of entries passed to a single {@code writeAll} call
+	 * @param flushInterval the maximum delay of a pending operation
+	 * @param maxPending the hard bound on the number of pending derived keys
+	 * @return the updated builder
+	 */
+	@Nonnull
+	MultikeyCacheBuilder<K, DK, V> writeBehind(@Nonnull MultikeyCacheWriter<K, DK, V> writer, int batchSize, @Nonnull Duration flushInterval, int maxPending);
+
+	/**
+	 * Sets the policy for hedging value loads: if a load is still in flight after the
+	 * policy's delay, a second attempt of the value loader is started and whichever attempt
+	 * succeeds first provides the value. Value loaders must be idempotent to be hedged.
+	 * There is no hedging unless explicitly set.
+	 *
+	 * @param hedgingPolicy the policy to apply
+	 * @return the updated builder
+	 */
+	@Nonnull
+	MultikeyCacheBuilder<K, DK, V> hedging(@Nonnull HedgingPolicy hedgingPolicy);
+
+	/**
+	 * Enables the stale-if-error grace tier: values evicted by expiry or size, together
+	 * with all their keys, are retained for the {@code gracePeriod}. If loading the value
+	 * of a key mapped to a retained derived key fails within the grace period, the retained
+	 * value is served instead of failing, and the value is reloaded in the background with
+	 * jittered exponential backoff starting from {@code initialBackoff}. Failures of the key
+	 * mapper are never masked, so that revoked keys fail, and a reloaded value is cached
+	 * without re-registering its keys, which are mapped anew. Values invalidated explicitly
+	 * are never retained. There is no grace tier unless explicitly set.
+	 *
+	 * @param gracePeriod the time to retain evicted values for
+	 * @param initialBackoff the delay before the first background reload
+	 * @return the updated builder
+	 * @throws IllegalStateException on build if the cache is bounded by weight without the
+	 *                               weigher set on this builder
+	 */
+	@Nonnull
+	MultikeyCacheBuilder<K, DK, V> staleIfError(@Nonnull Duration gracePeriod, @Nonnull Duration initialBackoff);
+
+	/**
+	 * Sets a recorder to trace key accesses, value loads and evictions for offline
+	 * analysis with the {@code TraceSimulator}. The recorder is not closed by the cache and
+	 * can be shared by several caches. There is no tracing unless explicitly set.
+	 *
+	 * @param traceRecorder the recorder to use
+	 * @return the updated builder
+	 */
+	@Nonnull
+	MultikeyCacheBuilder<K, DK, V> traceRecorder(@Nonnull TraceRecorder traceRecorder);
+
+	/**
+	 * Enables proactive expiration: derived keys are tracked on a timer wheel advanced by
+	 * the scheduler every {@code resolution}, and values expired according to the
+	 * {@code expireAfterAccess} or {@code expireAfterWrite} setting of the caffeine builder
+	 * are evicted in batches, together with all their keys, without waiting for further
+	 * cache activity. The removal listener thus fires within about the resolution of the
+	 * expiry, plus the wheel granularity of about 70ms, even on idle caches. There is no
+	 * proactive expiration unless explicitly set.
+	 *
+	 * @param resolution the interval of checking for expired values
+	 * @return the updated builder
+	 * @throws IllegalStateException on build if the caffeine builder defines no fixed expiry
+	 */
+	@Nonnull
+	MultikeyCacheBuilder<K, DK, V> proactiveExpiration(@Nonnull Duration resolution);
+
+	/**
+	 * Enables the admission filter for the alias index: keys missing in the index are
+	 * counted in a frequency sketch aged over about ten times the {@code expectedKeys}
+	 * observations, and a key is only added to the index once it has been seen more than
+	 * once. Requests for keys not admitted yet are still served like any other, with the
+	 * value cached by its derived key, but the key is not registered as an alias, so that
+	 * one-time keys of scanners and bots do not flood the alias index. Key cascades are
+	 * always admitted.
+	 * There is no admission filter unless explicitly set.
+	 *
+	 * @param expectedKeys the expected number of distinct keys to size the sketch for
+	 * @return the updated builder
+	 */
+	@Nonnull
+	MultikeyCacheBuilder<K, DK, V> aliasAdmission(int expectedKeys);
+
+	/**
+	 * Sets the predicate selecting loaded or put values to pin, see
+	 * {@code AsyncMultikeyCache.pin}, e.g. sessions of service accounts that must never be
+	 * evicted by size. Pinned values do not expire either: with expiry configured, a pinned
+	 * value stays until it is put anew, invalidated or unpinned, after which it expires as
+	 * any other. There is no pinning predicate unless explicitly set.
+	 *
+	 * @param pinningPredicate the predicate over derived keys and their values
+	 * @return the updated builder
+	 */
+	@Nonnull
+	MultikeyCacheBuilder<K, DK, V> pinningPredicate(@Nonnull BiPredicate<DK, V> pinningPredicate);
+
+	/**
+	 * Sets the sizers estimating the heap size of keys, derived keys and values for the
+	 * footprint accounting of the cache, see {@code AsyncMultikeyCache.footprint}. By default
+	 * strings, byte arrays, boxed primitives and collections are estimated from their length
+	 * or size and any other object is assumed small.
+	 *
+	 * @param keySizer the sizer of keys
+	 * @param derivedKeySizer the sizer of derived keys
+	 * @param valueSizer the sizer of values
+	 * @return the updated builder
+	 */
+	@Nonnull
+	MultikeyCacheBuilder<K, DK, V> footprintSizers(@Nonnull Sizer<K> keySizer, @Nonnull Sizer<DK> derivedKeySizer, @Nonnull Sizer<V> valueSizer);
+
+	/**
+	 * Sets the budget for the estimated total footprint of all cache tiers: whenever the
+	 * footprint exceeds the budget, the maximum size or weight of the caffeine cache is
+	 * lowered in proportion, evicting the coldest values and their keys, and it is raised
+	 * again, up to the configured maximum, as the footprint falls below the budget. The
+	 * caffeine builder must define a maximum size or weight. For partitioned caches the
+	 * budget applies to every partition. There is no budget unless explicitly set.
+	 *
+	 * @param bytes the budget in bytes
+	 * @return the updated builder
+	 */
+	@Nonnull
+	MultikeyCacheBuilder<K, DK, V> maximumFootprint(long bytes);
+
+	/**
+	 * Makes the cache retain 128-bit fingerprints of the keys instead of the keys
+	 * themselves, so that long keys such as credentials or API keys neither inflate the
+	 * alias index nor stay in memory. Keys are fingerprinted from their encoding produced by
+	 * the {@code keyEncoder} with a hash keyed by a random secret of the cache; a key is only
+	 * considered present if all 128 bits of its fingerprint match, and {@code get} maps the
+	 * key again on every hit to verify it resolves to the cached derived key.
+	 * <p>
+	 * As the keys are not retained, the removal listener registered here receives the
+	 * fingerprints (see {@code AliasFingerprint.matches}) and replaces any removal listener over
+	 * keys, and a registered {@code MultikeyCacheWriter} receives no keys on deletion.
+	 *
+	 * @param keyEncoder the function to encode keys for fingerprinting
+	 * @param removalListener the callback handler receiving fingerprints of removed keys
+	 * @return the updated builder
+	 */
+	@Nonnull
+	MultikeyCacheBuilder<K, DK, V> fingerprintAliases(@Nonnull Function<K, byte[]> keyEncoder, @Nullable RemovalListener<Set<AliasFingerprint>, V> removalListener);
+
 	/**
 	 * Builds an instance of {@code AsyncMultikeyCache} implementation.
 	 *
@@ -75,4 +282,22 @@ public interface MultikeyCacheBuilder<K, DK, V> {
 	 */
 	@Nonnull
 	AsyncMultikeyCache<K, DK, V> buildAsync();
+
+	/**
+	 * Builds a partitioned cache routing every derived key to the partition given by the
+	 * {@code partitioner}. Partitions are created on first use, each with the settings of
+	 * this builder and its own alias index and value cache built from the caffeine builder
+	 * returned by {@code partitionCaffeine} for the partition, which defines the quota of the
+	 * partition and whether statistics are recorded. The function must return a new
+	 * caffeine builder on every call; the caffeine builder this builder was created with is
+	 * not used. Keys not cached yet are mapped before routing, so that key cascades are
+	 * applied as a whole without caching intermediate keys.
+	 *
+	 * @param partitioner the function to map derived keys to partitions
+	 * @param partitionCaffeine the function to construct the caffeine builder of a partition
+	 * @param <P> the type of partition identifiers
+	 * @return the newly constructed instance of {@code PartitionedMultikeyCache} implementation
+	 */
+	@Nonnull
+	<P> PartitionedMultikeyCache<K, DK, V, P> buildPartitioned(@Nonnull Function<DK, P> partitioner, @Nonnull Function<P, Caffeine<Object, Object>> partitionCaffeine);
 }
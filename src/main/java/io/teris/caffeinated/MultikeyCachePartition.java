@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+import javax.annotation.Nonnull;
+
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+
+
+/**
+ * The internal view of a multikey cache used as a partition of the partitioned cache.
+ */
+interface MultikeyCachePartition<K, DK, V> extends AsyncMultikeyCache<K, DK, V> {
+
+	/**
+	 * Returns true if the key is in the alias index, mapped already or in flight.
+	 */
+	boolean indexes(@Nonnull K key);
+
+	/**
+	 * Serves the value of a derived key resolved outside the alias index, e.g. by a mapping
+	 * invalidated while in flight, from the cache if present or else loaded without caching
+	 * it, with the same instrumentation, hedging and stale-if-error fallback as any get.
+	 */
+	@Nonnull
+	CompletableFuture<V> getUncached(@Nonnull K key, @Nonnull DK derivedKey, @Nonnull BiFunction<K, DK, V> valueLoader);
+
+	@Nonnull
+	AsyncLoadingCache<DK, V> valueCache();
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated;
+
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+
+/**
+ * MultikeyCacheWriter defines the SPI for propagating changes of cached values to a
+ * backing store such as a database. The writer is registered on the cache builder in
+ * either write-through or write-behind mode.
+ * <p>
+ * In the write-through mode the writer is called synchronously on the thread putting the
+ * value into the cache and the value is only cached if the write succeeds. In the
+ * write-behind mode writes are buffered, coalesced per derived key and delivered in
+ * batches via {@code writeAll} from a background thread.
+ * <p>
+ * Values loaded via the value loader are considered to originate from the backing store
+ * and are never passed to the writer.
+ *
+ * @param <K> the type of keys maintained by the cache
+ * @param <DK> the type of derived keys used as common denominator to access cached values
+ * @param <V> the type of mapped values
+ */
+public interface MultikeyCacheWriter<K, DK, V> {
+
+	/**
+	 * Writes the value for the derived key to the backing store.
+	 *
+	 * @param derivedKey the derived key of the value
+	 * @param value the value to write
+	 */
+	void write(@Nonnull DK derivedKey, @Nonnull V value);
+
+	/**
+	 * Writes a batch of values to the backing store. Used in the write-behind mode only,
+	 * by default delegates to {@code write} for every entry. Implementations are
+	 * encouraged to override this method with a bulk upsert.
+	 *
+	 * @param entries the values to write by their derived keys
+	 */
+	default void writeAll(@Nonnull Map<DK, V> entries) {
+		entries.forEach(this::write);
+	}
+
+	/**
+	 * Deletes the value for the derived key from the backing store. Called on every
+	 * removal of a value from the cache other than its replacement, so implementations
+	 * may use the {@code cause} to distinguish explicit invalidation from eviction.
+	 *
+	 * @param derivedKey the derived key of the removed value
+	 * @param value the removed value, if available
+	 * @param keys all the keys that pointed to the removed value
+	 * @param cause the reason for the removal
+	 */
+	void delete(@Nonnull DK derivedKey, @Nullable V value, @Nonnull Set<K> keys, @Nonnull RemovalCause cause);
+}
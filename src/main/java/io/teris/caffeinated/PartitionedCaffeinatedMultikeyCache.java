@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+
+/**
+ * Implements PartitionedMultikeyCache as a facade over one multikey cache per partition.
+ * Keys are routed to the partition already indexing them, found via a routing index from
+ * keys to partitions, or else mapped to the derived key first, with concurrent mappings of
+ * the same key shared, and routed by the partition of the derived key. A route is added
+ * once the key is in the alias index of the partition, dropped whenever the partition
+ * removes the alias and checked against the alias index on use. For fingerprinted aliases
+ * the index holds fingerprints, with the secret shared by all partitions. All
+ * partitions share the executor and the scheduler, so that the number of threads does
+ * not grow with the number of partitions. A routing mapping invalidated while in flight
+ * is marked as such and its value loaded by the target partition without caching it.
+ */
+class PartitionedCaffeinatedMultikeyCache<K, DK, V, P> implements PartitionedMultikeyCache<K, DK, V, P> {
+
+	private static class Mapping<DK> {
+
+		final CompletableFuture<DK> future;
+
+		volatile boolean invalidated = false;
+
+		Mapping(CompletableFuture<DK> future) {
+			this.future = future;
+		}
+	}
+
+	private final ConcurrentHashMap<P, MultikeyCachePartition<K, DK, V>> partitions = new ConcurrentHashMap<>();
+
+	private final ConcurrentHashMap<K, Mapping<DK>> mappings = new ConcurrentHashMap<>();
+
+	final ConcurrentHashMap<Object, P> routes = new ConcurrentHashMap<>();
+
+	private final CaffeinatedMultikeyCacheBuilder<K, DK, V> builder;
+
+	private final Function<DK, P> partitioner;
+
+	private final Function<P, Caffeine<Object, Object>> partitionCaffeine;
+
+	private final Executor executor;
+
+	private final ScheduledExecutorService scheduler;
+
+	private final boolean ownsScheduler;
+
+	PartitionedCaffeinatedMultikeyCache(CaffeinatedMultikeyCacheBuilder<K, DK, V> builder, Function<DK, P> partitioner, Function<P, Caffeine<Object, Object>> partitionCaffeine) {
+		this.partitioner = partitioner;
+		this.partitionCaffeine = partitionCaffeine;
+		this.executor = builder.executor;
+		this.ownsScheduler = builder.scheduler == null;
+		// threads of a scheduled pool are only started once a task is scheduled
+		this.scheduler = ownsScheduler ? Executors.newScheduledThreadPool(1, runnable -> {
+			Thread thread = new Thread(runnable, "caffeinated-scheduler");
+			thread.setDaemon(true);
+			return thread;
+		}) : builder.scheduler;
+		this.builder = builder.copy(null);
+		this.builder.scheduler = scheduler;
+		if (builder.fingerprintEncoder != null) {
+			this.builder.fingerprintSecret = AliasFingerprint.Secret.random();
+		}
+	}
+
+	@Nonnull
+	@Override
+	public CompletableFuture<V> get(@Nonnull K key, @Nonnull Function<K, DK> keyMapper, @Nonnull BiFunction<K, DK, V> valueLoader) {
+		MultikeyCachePartition<K, DK, V> partition = partitionOfKey(key);
+		if (partition != null) {
+			return partition.get(key, keyMapper, valueLoader);
+		}
+		Mapping<DK> mapping = mapping(key, keyMapper);
+		return mapping.future.thenCompose(derivedKey -> {
+			P id = partitioner.apply(derivedKey);
+			MultikeyCachePartition<K, DK, V> target = partition(id);
+			if (mapping.invalidated) {
+				return target.getUncached(key, derivedKey, valueLoader);
+			}
+			CompletableFuture<V> res = target.get(key, $ -> derivedKey, valueLoader);
+			if (mapping.invalidated) {
+				// invalidated while routing, possibly before the key reached the partition
+				target.invalidate(key);
+			} else if (target.indexes(key)) {
+				// not indexed if not admitted to the alias index
+				routes.put(routingKey(key), id);
+			}
+			return res;
+		});
+	}
+
+	@Nonnull
+	@Override
+	public CompletableFuture<V> get(@Nonnull K key) {
+		return get(key, builder.keyMapper, builder.valueLoader);
+	}
+
+	@Nonnull
+	@Override
+	public CompletableFuture<V> get(@Nonnull K key, @Nonnull Function<K, DK> keyMapper, @Nonnull BiFunction<K, DK, V> valueLoader, @Nonnull Duration timeout) {
+		return CaffeinatedMultikeyCache.withTimeout(get(key, keyMapper, valueLoader), timeout, () -> scheduler);
+	}
+
+	@Nonnull
+	@Override
+	public CompletableFuture<V> get(@Nonnull K key, @Nonnull Duration timeout) {
+		return CaffeinatedMultikeyCache.withTimeout(get(key), timeout, () -> scheduler);
+	}
+
+	@Nullable
+	@Override
+	public V getIfPresent(@Nonnull K key) {
+		MultikeyCachePartition<K, DK, V> partition = partitionOfKey(key);
+		return partition != null ? partition.getIfPresent(key) : null;
+	}
+
+	@Nullable
+	@Override
+	public DK getDerivedKeyIfPresent(@Nonnull K key) {
+		MultikeyCachePartition<K, DK, V> partition = partitionOfKey(key);
+		return partition != null ? partition.getDerivedKeyIfPresent(key) : null;
+	}
+
+	@Nullable
+	@Override
+	public V getByDerivedKeyIfPresent(@Nonnull DK derivedKey) {
+		MultikeyCachePartition<K, DK, V> partition = partitions.get(partitioner.apply(derivedKey));
+		return partition != null ? partition.getByDerivedKeyIfPresent(derivedKey) : null;
+	}
+
+	@Override
+	public void put(@Nonnull DK derivedKey, @Nonnull V value) {
+		partitionOf(derivedKey).put(derivedKey, value);
+	}
+
+	@Override
+	public void pin(@Nonnull DK derivedKey) {
+		partitionOf(derivedKey).pin(derivedKey);
+	}
+
+	@Override
+	public void unpin(@Nonnull DK derivedKey) {
+		MultikeyCachePartition<K, DK, V> partition = partitions.get(partitioner.apply(derivedKey));
+		if (partition != null) {
+			partition.unpin(derivedKey);
+		}
+	}
+
+	@Override
+	public void invalidate(@Nonnull K key) {
+		invalidateMapping(key);
+		MultikeyCachePartition<K, DK, V> partition = partitionOfKey(key);
+		if (partition != null) {
+			partition.invalidate(key);
+		} else if (builder.gracePeriod != null) {
+			// the value of a key evicted from the index may be retained by any grace tier
+			partitions.values().forEach(any -> any.invalidate(key));
+		}
+	}
+
+	@Override
+	public void invalidateAll(@Nonnull Iterable<K> keys) {
+		keys.forEach(this::invalidate);
+	}
+
+	@Nonnull
+	@Override
+	public GraceStats graceStats() {
+		GraceStats res = GraceStats.EMPTY;
+		for (MultikeyCachePartition<K, DK, V> partition : partitions.values()) {
+			res = res.plus(partition.graceStats());
+		}
+		return res;
+	}
+
+	@Nonnull
+	@Override
+	public Stream<Entry<K, DK, V>> entries() {
+		return partitions.values().stream().flatMap(AsyncMultikeyCache::entries);
+	}
+
+	@Nonnull
+	@Override
+	public Footprint footprint() {
+		Footprint res = Footprint.EMPTY;
+		for (MultikeyCachePartition<K, DK, V> partition : partitions.values()) {
+			res = res.plus(partition.footprint());
+		}
+		return res;
+	}
+
+	@Nonnull
+	@Override
+	public Set<P> partitions() {
+		return new HashSet<>(partitions.keySet());
+	}
+
+	@Nonnull
+	@Override
+	public CacheStats stats(@Nonnull P partition) {
+		MultikeyCachePartition<K, DK, V> res = partitions.get(partition);
+		return res != null ? res.valueCache().synchronous().stats() : CacheStats.empty();
+	}
+
+	@Override
+	public long estimatedSize(@Nonnull P partition) {
+		MultikeyCachePartition<K, DK, V> res = partitions.get(partition);
+		return res != null ? res.valueCache().synchronous().estimatedSize() : 0L;
+	}
+
+	@Override
+	public void close() {
+		try {
+			partitions.values().forEach(AsyncMultikeyCache::close);
+		} finally {
+			if (ownsScheduler) {
+				scheduler.shutdown();
+			}
+		}
+	}
+
+	private MultikeyCachePartition<K, DK, V> partitionOf(DK derivedKey) {
+		return partition(partitioner.apply(derivedKey));
+	}
+
+	private MultikeyCachePartition<K, DK, V> partition(P id) {
+		return partitions.computeIfAbsent(id, $ -> {
+			CaffeinatedMultikeyCacheBuilder<K, DK, V> partitionBuilder = builder.copy(partitionCaffeine.apply(id));
+			partitionBuilder.aliasRemovalHook = routingKey -> routes.remove(routingKey, id);
+			return partitionBuilder.buildPartition();
+		});
+	}
+
+	@Nullable
+	private MultikeyCachePartition<K, DK, V> partitionOfKey(K key) {
+		Object routingKey = routingKey(key);
+		P id = routes.get(routingKey);
+		if (id == null) {
+			return null;
+		}
+		MultikeyCachePartition<K, DK, V> res = partitions.get(id);
+		if (res != null && res.indexes(key)) {
+			return res;
+		}
+		routes.remove(routingKey, id);
+		return null;
+	}
+
+	/**
+	 * Returns the key as indexed by the partitions: its fingerprint for fingerprinted
+	 * aliases or the key itself otherwise.
+	 */
+	private Object routingKey(K key) {
+		return builder.fingerprintSecret != null ? builder.fingerprintSecret.fingerprint(builder.fingerprintEncoder.apply(key)) : key;
+	}
+
+	private Mapping<DK> mapping(K key, Function<K, DK> keyMapper) {
+		Mapping<DK> res = mappings.computeIfAbsent(key, $ -> new Mapping<>(CompletableFuture.supplyAsync(() -> keyMapper.apply(key), executor)));
+		res.future.whenComplete(($, $$) -> mappings.remove(key, res));
+		return res;
+	}
+
+	private void invalidateMapping(K key) {
+		Mapping<DK> mapping = mappings.remove(key);
+		if (mapping != null) {
+			mapping.invalidated = true;
+			mapping.future.thenAccept(derivedKey -> {
+				MultikeyCachePartition<K, DK, V> partition = partitions.get(partitioner.apply(derivedKey));
+				if (partition != null) {
+					partition.invalidate(key);
+				}
+			});
+		}
+	}
+
+}
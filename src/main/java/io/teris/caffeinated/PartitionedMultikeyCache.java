@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated;
+
+import java.util.Set;
+import javax.annotation.Nonnull;
+
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+
+/**
+ * PartitionedMultikeyCache defines a multikey cache split into partitions, e.g. one per
+ * tenant, each with its own alias index, value cache, size or weight quota and statistics.
+ * Every derived key belongs to exactly one partition and all the keys pointing to it are
+ * indexed in that partition only, so that values of one partition are never evicted by the
+ * load on another one.
+ *
+ * @param <K> the type of keys maintained by the cache
+ * @param <DK> the type of derived keys used as common denominator to access cached values
+ * @param <V> the type of mapped values
+ * @param <P> the type of partition identifiers
+ */
+public interface PartitionedMultikeyCache<K, DK, V, P> extends AsyncMultikeyCache<K, DK, V> {
+
+	/**
+	 * Returns the partitions created so far. Partitions are created on first use.
+	 *
+	 * @return a snapshot of the partition identifiers
+	 */
+	@Nonnull
+	Set<P> partitions();
+
+	/**
+	 * Returns a snapshot of the value cache statistics of the partition. Statistics are
+	 * only recorded if enabled on the caffeine builder of the partition.
+	 *
+	 * @param partition the partition identifier
+	 * @return the statistics, empty for partitions not created yet
+	 */
+	@Nonnull
+	CacheStats stats(@Nonnull P partition);
+
+	/**
+	 * Returns the approximate number of values cached in the partition.
+	 *
+	 * @param partition the partition identifier
+	 * @return the approximate number of values, zero for partitions not created yet
+	 */
+	long estimatedSize(@Nonnull P partition);
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiPredicate;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.github.benmanes.caffeine.cache.Policy;
+
+
+/**
+ * The non-evicting region of pinned values. Derived keys are pinned either explicitly,
+ * which is remembered until unpinned, or by the pinning predicate evaluated on the value.
+ * The weight of every pinned value, as defined by the weigher or 1 without one, is
+ * deducted from the maximum of the size-bounded cache, so that pinned values count
+ * against the total budget and colder values are evicted in their place.
+ */
+@ThreadSafe
+class PinnedRegion<DK, V> {
+
+	static class Pinned<V> {
+
+		final V value;
+
+		final long weight;
+
+		Pinned(V value, long weight) {
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	private final Map<DK, Pinned<V>> values = new ConcurrentHashMap<>();
+
+	private final Set<DK> explicit = ConcurrentHashMap.newKeySet();
+
+	private final BiPredicate<DK, V> predicate;
+
+	private final Policy.Eviction<DK, V> eviction;
+
+	private final long maximum;
+
+	private long pinnedWeight = 0;
+
+	private long cap = Long.MAX_VALUE;
+
+	PinnedRegion(@Nullable BiPredicate<DK, V> predicate, @Nonnull Optional<Policy.Eviction<DK, V>> eviction) {
+		this.predicate = predicate;
+		this.eviction = eviction.orElse(null);
+		this.maximum = this.eviction != null ? this.eviction.getMaximum() : 0L;
+	}
+
+	/**
+	 * Returns true if any value can be pinned, that is with a predicate or explicit pins.
+	 */
+	boolean enabled() {
+		return predicate != null || !explicit.isEmpty();
+	}
+
+	@Nullable
+	V get(@Nonnull DK derivedKey) {
+		Pinned<V> res = values.get(derivedKey);
+		return res != null ? res.value : null;
+	}
+
+	boolean shouldPin(@Nonnull DK derivedKey, @Nonnull V value) {
+		return explicit.contains(derivedKey) || (predicate != null && predicate.test(derivedKey, value));
+	}
+
+	void pinExplicitly(@Nonnull DK derivedKey) {
+		explicit.add(derivedKey);
+	}
+
+	/**
+	 * Adds the value to the region unless already pinned.
+	 *
+	 * @return true if added
+	 */
+	boolean add(@Nonnull DK derivedKey, @Nonnull V value, long weight) {
+		if (values.putIfAbsent(derivedKey, new Pinned<>(value, weight)) == null) {
+			adjust(weight);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Replaces the value of a pinned derived key.
+	 *
+	 * @return true if the derived key was pinned
+	 */
+	boolean replace(@Nonnull DK derivedKey, @Nonnull V value) {
+		Pinned<V> current = values.get(derivedKey);
+		return current != null && values.replace(derivedKey, current, new Pinned<>(value, current.weight));
+	}
+
+	/**
+	 * Removes the value from the region retaining the explicit pin for the next value.
+	 */
+	@Nullable
+	V remove(@Nonnull DK derivedKey) {
+		Pinned<V> res = values.remove(derivedKey);
+		if (res != null) {
+			adjust(-res.weight);
+			return res.value;
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the value from the region only if it is still the pinned one.
+	 *
+	 * @return true if removed
+	 */
+	boolean remove(@Nonnull DK derivedKey, @Nonnull V value) {
+		Pinned<V> current = values.get(derivedKey);
+		if (current != null && current.value == value && values.remove(derivedKey, current)) {
+			adjust(-current.weight);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Removes the value from the region together with the explicit pin.
+	 */
+	@Nullable
+	V unpin(@Nonnull DK derivedKey) {
+		explicit.remove(derivedKey);
+		return remove(derivedKey);
+	}
+
+	@Nonnull
+	Map<DK, Pinned<V>> values() {
+		return values;
+	}
+
+	long weightOf(@Nonnull DK derivedKey) {
+		return eviction != null ? eviction.weightOf(derivedKey).orElse(1) : 1L;
+	}
+
+	/**
+	 * Caps the maximum of the size-bounded cache, e.g. to enforce a footprint budget.
+	 */
+	synchronized void cap(long cap) {
+		this.cap = cap;
+		apply();
+	}
+
+	private synchronized void adjust(long weight) {
+		pinnedWeight += weight;
+		apply();
+	}
+
+	private void apply() {
+		if (eviction != null) {
+			long res = Math.min(cap, Math.max(0L, maximum - pinnedWeight));
+			if (res != eviction.getMaximum()) {
+				eviction.setMaximum(res);
+			}
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.OptionalLong;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.Policy;
+import com.github.benmanes.caffeine.cache.Ticker;
+
+
+/**
+ * Expires derived keys proactively instead of waiting for cache activity to trigger the
+ * maintenance of caffeine: every loaded derived key is scheduled on a timer wheel for the
+ * time it would expire if not accessed again, and the wheel is advanced periodically on
+ * the scheduler. Due derived keys are checked against their actual age, as an access may
+ * have extended their lifetime, and rescheduled if not expired yet; if any has expired,
+ * the cache is cleaned up once for the whole batch, evicting the values and, via the
+ * removal fan-out, all their aliases. Deadlines are read from the ticker of the cache,
+ * so that they are on the same time line as the ages reported by caffeine.
+ * <p>
+ * Like the write buffer of caffeine, schedules and deschedules are not applied to the
+ * wheel by the callers but queued to a lock-free buffer, which is drained into the wheel
+ * under the lock on every advance, or by a caller that finds the buffer full and the lock
+ * free, so that the hot path never waits for the lock.
+ */
+@ThreadSafe
+class ProactiveExpiry<DK, V> {
+
+	static final int DRAIN_THRESHOLD = 1024;
+
+	private final LoadingCache<DK, V> cache;
+
+	private final Policy.Expiration<DK, V> expiration;
+
+	private final Ticker ticker;
+
+	private final TimerWheel<DK> wheel;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Queue<Operation<DK>> buffer = new ConcurrentLinkedQueue<>();
+
+	private final AtomicInteger buffered = new AtomicInteger();
+
+	private final ScheduledFuture<?> task;
+
+	ProactiveExpiry(@Nonnull LoadingCache<DK, V> cache, @Nonnull Duration resolution, @Nonnull Ticker ticker, @Nonnull Supplier<ScheduledExecutorService> scheduler) {
+		this.cache = cache;
+		this.expiration = expiration(cache);
+		this.ticker = ticker;
+		this.wheel = new TimerWheel<>(ticker.read());
+		long resolutionNanos = resolution.toNanos();
+		this.task = scheduler.get().scheduleWithFixedDelay(this::advance, resolutionNanos, resolutionNanos, TimeUnit.NANOSECONDS);
+	}
+
+	void schedule(@Nonnull DK derivedKey) {
+		long deadline = ticker.read() + expiration.getExpiresAfter(TimeUnit.NANOSECONDS);
+		enqueue(new Operation<>(derivedKey, deadline));
+	}
+
+	void deschedule(@Nonnull DK derivedKey) {
+		enqueue(new Operation<>(derivedKey, null));
+	}
+
+	int size() {
+		lock.lock();
+		try {
+			drain();
+			return wheel.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void close() {
+		task.cancel(false);
+	}
+
+	void advance() {
+		try {
+			long now = ticker.read();
+			List<DK> due;
+			lock.lock();
+			try {
+				drain();
+				due = wheel.advance(now);
+			} finally {
+				lock.unlock();
+			}
+			long expiresAfter = expiration.getExpiresAfter(TimeUnit.NANOSECONDS);
+			boolean expired = false;
+			List<Operation<DK>> rescheduled = new ArrayList<>();
+			for (DK derivedKey : due) {
+				// caffeine reports expired entries as absent until they are cleaned up
+				OptionalLong age = expiration.ageOf(derivedKey, TimeUnit.NANOSECONDS);
+				long remaining = age.isPresent() ? expiresAfter - age.getAsLong() : 0L;
+				if (remaining <= 0) {
+					expired = true;
+				} else {
+					rescheduled.add(new Operation<>(derivedKey, now + remaining));
+				}
+			}
+			if (!rescheduled.isEmpty()) {
+				lock.lock();
+				try {
+					// drained first so that schedules queued meanwhile are not overridden
+					drain();
+					rescheduled.forEach(this::apply);
+				} finally {
+					lock.unlock();
+				}
+			}
+			if (expired) {
+				cache.cleanUp();
+			}
+		} catch (RuntimeException ex) {
+			// ignored to keep the periodic task alive, due keys will expire on cache activity
+		}
+	}
+
+	private void enqueue(Operation<DK> operation) {
+		buffer.add(operation);
+		if (buffered.incrementAndGet() >= DRAIN_THRESHOLD && lock.tryLock()) {
+			try {
+				drain();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private void drain() {
+		Operation<DK> operation;
+		while ((operation = buffer.poll()) != null) {
+			buffered.decrementAndGet();
+			apply(operation);
+		}
+	}
+
+	private void apply(Operation<DK> operation) {
+		if (operation.deadline != null) {
+			wheel.schedule(operation.derivedKey, operation.deadline);
+		} else {
+			wheel.deschedule(operation.derivedKey);
+		}
+	}
+
+	private static <DK, V> Policy.Expiration<DK, V> expiration(LoadingCache<DK, V> cache) {
+		Policy<DK, V> policy = cache.policy();
+		return policy.expireAfterAccess()
+			.orElseGet(() -> policy.expireAfterWrite()
+				.orElseThrow(() -> new IllegalStateException("proactive expiration requires expireAfterAccess or expireAfterWrite")));
+	}
+
+	/**
+	 * A buffered schedule of the derived key, or its deschedule if without deadline.
+	 */
+	private static final class Operation<DK> {
+
+		final DK derivedKey;
+
+		final Long deadline;
+
+		Operation(DK derivedKey, @Nullable Long deadline) {
+			this.derivedKey = derivedKey;
+			this.deadline = deadline;
+		}
+	}
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated;
+
+import javax.annotation.Nonnull;
+
+
+/**
+ * Sizer defines a function estimating the retained heap size of keys, derived keys or
+ * values for the footprint accounting of the cache. Sizers are applied to a sample of the
+ * objects added to the cache only and need not be exact, but should be cheap.
+ *
+ * @param <T> the type of objects to size
+ */
+@FunctionalInterface
+public interface Sizer<T> {
+
+	/**
+	 * Estimates the retained heap size of the object.
+	 *
+	 * @param object the object to size
+	 * @return the estimated size in bytes
+	 */
+	long sizeOf(@Nonnull T object);
+}
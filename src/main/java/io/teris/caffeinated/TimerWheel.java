@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+
+
+/**
+ * A hierarchical timer wheel scheduling items by their deadlines in O(1). Each level is a
+ * ring of buckets spanning a power-of-two number of nanoseconds, with every level covering
+ * the whole ring of the level below; items too far in the future are kept in a single
+ * overflow bucket. Advancing the wheel expires the buckets passed since the last advance
+ * and cascades items of higher levels down to the lower ones as their deadlines approach.
+ * Items are due at most one level-0 bucket span (about 67ms) after their deadline.
+ * <p>
+ * The wheel is not thread-safe and must be guarded externally.
+ */
+@NotThreadSafe
+class TimerWheel<T> {
+
+	static final int[] SHIFTS = {26, 32, 38, 44};
+
+	static final int BUCKETS = 64;
+
+	private static class Node<T> {
+
+		final T item;
+
+		long deadline;
+
+		Node<T> prev;
+
+		Node<T> next;
+
+		Node(T item) {
+			this.item = item;
+		}
+	}
+
+	private final Node<T>[][] wheel;
+
+	private final Map<T, Node<T>> nodes = new HashMap<>();
+
+	private long currentNanos;
+
+	TimerWheel(long nowNanos) {
+		currentNanos = nowNanos;
+		@SuppressWarnings("unchecked")
+		Node<T>[][] levels = (Node<T>[][]) new Node<?>[SHIFTS.length + 1][];
+		wheel = levels;
+		for (int level = 0; level <= SHIFTS.length; level++) {
+			int buckets = level < SHIFTS.length ? BUCKETS : 1;
+			wheel[level] = newBuckets(buckets);
+			for (int bucket = 0; bucket < buckets; bucket++) {
+				Node<T> sentinel = new Node<>(null);
+				sentinel.prev = sentinel;
+				sentinel.next = sentinel;
+				wheel[level][bucket] = sentinel;
+			}
+		}
+	}
+
+	/**
+	 * Schedules the item for the deadline replacing its previous schedule, if any.
+	 */
+	void schedule(@Nonnull T item, long deadlineNanos) {
+		Node<T> node = nodes.get(item);
+		if (node != null) {
+			unlink(node);
+		} else {
+			node = new Node<>(item);
+			nodes.put(item, node);
+		}
+		node.deadline = deadlineNanos;
+		link(node);
+	}
+
+	void deschedule(@Nonnull T item) {
+		Node<T> node = nodes.remove(item);
+		if (node != null) {
+			unlink(node);
+		}
+	}
+
+	int size() {
+		return nodes.size();
+	}
+
+	/**
+	 * Advances the wheel to the given time returning all the items whose deadlines have
+	 * passed; these items are descheduled.
+	 */
+	@Nonnull
+	List<T> advance(long nowNanos) {
+		List<T> res = new ArrayList<>();
+		long previousNanos = currentNanos;
+		if (nowNanos - previousNanos < 0) {
+			return res;
+		}
+		currentNanos = nowNanos;
+		for (int level = 0; level < SHIFTS.length; level++) {
+			long previousTicks = previousNanos >>> SHIFTS[level];
+			long ticks = nowNanos >>> SHIFTS[level];
+			if (level > 0 && ticks == previousTicks) {
+				break;
+			}
+			long count = Math.min(ticks - previousTicks + 1, BUCKETS);
+			for (long i = 0; i < count; i++) {
+				expire(wheel[level][(int) ((previousTicks + i) & (BUCKETS - 1))], res);
+			}
+		}
+		expire(wheel[SHIFTS.length][0], res);
+		return res;
+	}
+
+	private void expire(Node<T> sentinel, List<T> res) {
+		// detach the bucket first as items not due yet are rescheduled into the wheel
+		Node<T> node = sentinel.next;
+		sentinel.prev = sentinel;
+		sentinel.next = sentinel;
+		while (node != sentinel) {
+			Node<T> next = node.next;
+			if (node.deadline - currentNanos <= 0) {
+				nodes.remove(node.item);
+				res.add(node.item);
+			} else {
+				link(node);
+			}
+			node = next;
+		}
+	}
+
+	private void link(Node<T> node) {
+		Node<T> sentinel = bucketOf(node.deadline);
+		node.prev = sentinel.prev;
+		node.next = sentinel;
+		sentinel.prev.next = node;
+		sentinel.prev = node;
+	}
+
+	private void unlink(Node<T> node) {
+		node.prev.next = node.next;
+		node.next.prev = node.prev;
+		node.prev = null;
+		node.next = null;
+	}
+
+	private static <T> Node<T>[] newBuckets(int length) {
+		@SuppressWarnings("unchecked")
+		Node<T>[] res = (Node<T>[]) new Node<?>[length];
+		return res;
+	}
+
+	private Node<T> bucketOf(long deadlineNanos) {
+		long delay = Math.max(0L, deadlineNanos - currentNanos);
+		for (int level = 0; level < SHIFTS.length; level++) {
+			if (delay < 1L << (SHIFTS[level] + 6)) {
+				return wheel[level][(int) ((Math.max(deadlineNanos, currentNanos) >>> SHIFTS[level]) & (BUCKETS - 1))];
+			}
+		}
+		return wheel[SHIFTS.length][0];
+	}
+}
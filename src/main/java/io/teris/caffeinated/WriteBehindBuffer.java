@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+
+/**
+ * Buffers writes and deletes for a {@code MultikeyCacheWriter} coalescing them per derived
+ * key, so that only the latest operation for each derived key reaches the writer, except
+ * that an eviction does not undo a pending write: both are delivered, the write first. The
+ * buffer is flushed in batches of {@code batchSize} once that many derived keys are pending
+ * or every {@code flushInterval}, whichever comes first, always in the background.
+ * <p>
+ * At most {@code maxPending} derived keys are pending: beyond that new writes are rejected
+ * and new deletes dropped, while operations on derived keys pending already are coalesced.
+ * Operations stay pending until delivered, so that a failed batch is retried unless a newer
+ * operation for the same derived key has been buffered meanwhile. Failed background flushes
+ * are retried on the scheduler with an exponential backoff capped at {@code flushInterval},
+ * during which the size trigger is suspended. Writer failures only surface from an
+ * explicit flush or close, never into the put or the removal that triggered a flush.
+ */
+class WriteBehindBuffer<K, DK, V> {
+
+	private static final long INITIAL_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+	private final MultikeyCacheWriter<K, DK, V> writer;
+
+	private final int batchSize;
+
+	private final int maxPending;
+
+	private final long maxBackoffNanos;
+
+	private final Executor executor;
+
+	private final ScheduledExecutorService scheduler;
+
+	private final ConcurrentHashMap<DK, PendingOp<K, V>> pending = new ConcurrentHashMap<>();
+
+	// the number of pending derived keys, maintained exactly to bound them
+	private final AtomicInteger pendingCount = new AtomicInteger(0);
+
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+	// the delay of the next retry or zero while the writer succeeds
+	private final AtomicLong backoffNanos = new AtomicLong(0);
+
+	private final ScheduledFuture<?> timer;
+
+	WriteBehindBuffer(MultikeyCacheWriter<K, DK, V> writer, int batchSize, Duration flushInterval, int maxPending,
+		Executor executor, ScheduledExecutorService scheduler) {
+		this.writer = writer;
+		this.batchSize = batchSize;
+		this.maxPending = maxPending;
+		this.executor = executor;
+		this.scheduler = scheduler;
+		long intervalNanos = flushInterval.toNanos();
+		this.maxBackoffNanos = intervalNanos;
+		timer = scheduler.scheduleWithFixedDelay(this::flushInBackground, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return false if the write is rejected because the buffer is full
+	 */
+	boolean write(@Nonnull DK derivedKey, @Nonnull V value) {
+		return enqueue(derivedKey, new PendingOp<>(value, null, null, null));
+	}
+
+	/**
+	 * @return false if the delete is dropped because the buffer is full
+	 */
+	boolean delete(@Nonnull DK derivedKey, @Nullable V value, @Nonnull Set<K> keys, @Nonnull RemovalCause cause) {
+		return enqueue(derivedKey, new PendingOp<>(null, value, keys, cause));
+	}
+
+	int pendingCount() {
+		return pendingCount.get();
+	}
+
+	synchronized void flush() {
+		int remaining = pending.size();
+		Iterator<Map.Entry<DK, PendingOp<K, V>>> it = pending.entrySet().iterator();
+		while (remaining > 0 && it.hasNext()) {
+			Map<DK, PendingOp<K, V>> batch = new LinkedHashMap<>();
+			while (it.hasNext() && batch.size() < batchSize) {
+				Map.Entry<DK, PendingOp<K, V>> entry = it.next();
+				batch.put(entry.getKey(), entry.getValue());
+			}
+			remaining -= batch.size();
+			deliver(batch);
+			batch.forEach((derivedKey, op) -> {
+				if (pending.remove(derivedKey, op)) {
+					pendingCount.decrementAndGet();
+				}
+			});
+		}
+	}
+
+	void close() {
+		timer.cancel(false);
+		flush();
+	}
+
+	private boolean enqueue(DK derivedKey, PendingOp<K, V> op) {
+		AtomicBoolean admitted = new AtomicBoolean(true);
+		pending.compute(derivedKey, ($, current) -> {
+			if (current != null) {
+				return current.then(op);
+			}
+			if (pendingCount.incrementAndGet() > maxPending) {
+				pendingCount.decrementAndGet();
+				admitted.set(false);
+				return null;
+			}
+			return op;
+		});
+		if (pendingCount.get() >= batchSize && backoffNanos.get() == 0 && flushScheduled.compareAndSet(false, true)) {
+			executor.execute(() -> {
+				flushScheduled.set(false);
+				flushInBackground();
+			});
+		}
+		return admitted.get();
+	}
+
+	private void deliver(Map<DK, PendingOp<K, V>> batch) {
+		Map<DK, V> writes = new LinkedHashMap<>();
+		List<Map.Entry<DK, PendingOp<K, V>>> deletes = new ArrayList<>();
+		for (Map.Entry<DK, PendingOp<K, V>> entry : batch.entrySet()) {
+			if (entry.getValue().written != null) {
+				writes.put(entry.getKey(), entry.getValue().written);
+			}
+			if (entry.getValue().cause != null) {
+				deletes.add(entry);
+			}
+		}
+		if (!writes.isEmpty()) {
+			writer.writeAll(writes);
+		}
+		for (Map.Entry<DK, PendingOp<K, V>> entry : deletes) {
+			PendingOp<K, V> op = entry.getValue();
+			writer.delete(entry.getKey(), op.removed, op.keys, op.cause);
+		}
+	}
+
+	private void flushInBackground() {
+		// while backing off, only the scheduled retry flushes
+		if (backoffNanos.get() != 0) {
+			return;
+		}
+		try {
+			flush();
+		} catch (RuntimeException ex) {
+			long delay = Math.min(INITIAL_BACKOFF_NANOS, maxBackoffNanos);
+			if (backoffNanos.compareAndSet(0, delay)) {
+				scheduleRetry(delay);
+			}
+		}
+	}
+
+	private void retry() {
+		try {
+			flush();
+			backoffNanos.set(0);
+		} catch (RuntimeException ex) {
+			scheduleRetry(backoffNanos.updateAndGet(backoff -> Math.min(2 * backoff, maxBackoffNanos)));
+		}
+	}
+
+	private void scheduleRetry(long delayNanos) {
+		try {
+			scheduler.schedule(this::retry, delayNanos, TimeUnit.NANOSECONDS);
+		} catch (RejectedExecutionException ex) {
+			// the scheduler is shut down on close, which flushes for the last time
+		}
+	}
+
+	private static class PendingOp<K, V> {
+
+		// the value to write or null if deleted only
+		final V written;
+
+		final V removed;
+
+		final Set<K> keys;
+
+		// the cause of the removal following the write, if any, or null if written only
+		final RemovalCause cause;
+
+		PendingOp(V written, V removed, Set<K> keys, RemovalCause cause) {
+			this.written = written;
+			this.removed = removed;
+			this.keys = keys;
+			this.cause = cause;
+		}
+
+		/**
+		 * Coalesces the next operation for the same derived key into this one.
+		 */
+		PendingOp<K, V> then(PendingOp<K, V> next) {
+			// an eviction does not undo a write still pending, so the write precedes it
+			if (written != null && next.cause != null && next.cause.wasEvicted()) {
+				return new PendingOp<>(written, next.removed, next.keys, next.cause);
+			}
+			return next;
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated.trace;
+
+import java.security.SecureRandom;
+import java.util.UUID;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+
+/**
+ * Hashes keys to 64-bit trace identifiers with SipHash-2-4 keyed by a random seed per
+ * recording. The seed is never written to the trace: identifiers only need to be
+ * consistent within one trace, while hashes of sensitive keys must not be open to
+ * dictionary attacks. Character sequences are hashed over their UTF-16 code units,
+ * numbers and UUIDs over their string form and other keys over their {@code hashCode}.
+ */
+@Immutable
+final class KeyHasher {
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final long k0;
+
+	private final long k1;
+
+	KeyHasher(long k0, long k1) {
+		this.k0 = k0;
+		this.k1 = k1;
+	}
+
+	@Nonnull
+	static KeyHasher random() {
+		return new KeyHasher(RANDOM.nextLong(), RANDOM.nextLong());
+	}
+
+	long hash(@Nonnull Object key) {
+		if (key instanceof CharSequence) {
+			return hash((CharSequence) key);
+		}
+		if (key instanceof Number || key instanceof UUID) {
+			return hash(key.toString());
+		}
+		SipHash hash = new SipHash(k0, k1);
+		hash.compress((4L << 56) | (key.hashCode() & 0xffffffffL));
+		return hash.finish();
+	}
+
+	/**
+	 * Hashes the characters as the bytes of their UTF-16LE encoding, four per message word.
+	 */
+	private long hash(CharSequence chars) {
+		SipHash hash = new SipHash(k0, k1);
+		int length = chars.length();
+		int i = 0;
+		for (; i + 4 <= length; i += 4) {
+			hash.compress(chars.charAt(i) | (long) chars.charAt(i + 1) << 16
+				| (long) chars.charAt(i + 2) << 32 | (long) chars.charAt(i + 3) << 48);
+		}
+		long last = (long) (2 * length) << 56;
+		for (int shift = 0; i < length; i++, shift += 16) {
+			last |= (long) chars.charAt(i) << shift;
+		}
+		hash.compress(last);
+		return hash.finish();
+	}
+
+	/**
+	 * The state of SipHash-2-4 with the 64-bit output.
+	 */
+	private static final class SipHash {
+
+		private long v0;
+
+		private long v1;
+
+		private long v2;
+
+		private long v3;
+
+		SipHash(long k0, long k1) {
+			v0 = k0 ^ 0x736f6d6570736575L;
+			v1 = k1 ^ 0x646f72616e646f6dL;
+			v2 = k0 ^ 0x6c7967656e657261L;
+			v3 = k1 ^ 0x7465646279746573L;
+		}
+
+		void compress(long m) {
+			v3 ^= m;
+			round();
+			round();
+			v0 ^= m;
+		}
+
+		long finish() {
+			v2 ^= 0xff;
+			for (int i = 0; i < 4; i++) {
+				round();
+			}
+			return v0 ^ v1 ^ v2 ^ v3;
+		}
+
+		private void round() {
+			v0 += v1;
+			v1 = Long.rotateLeft(v1, 13);
+			v1 ^= v0;
+			v0 = Long.rotateLeft(v0, 32);
+			v2 += v3;
+			v3 = Long.rotateLeft(v3, 16);
+			v3 ^= v2;
+			v0 += v3;
+			v3 = Long.rotateLeft(v3, 21);
+			v3 ^= v0;
+			v2 += v1;
+			v1 = Long.rotateLeft(v1, 17);
+			v1 ^= v2;
+			v2 = Long.rotateLeft(v2, 32);
+		}
+	}
+}
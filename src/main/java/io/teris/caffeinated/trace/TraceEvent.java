@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated.trace;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+
+/**
+ * TraceEvent is a single record of an access trace: a key access resolved to a derived
+ * key, a value load or an eviction. Keys and derived keys are recorded as 64-bit hashes
+ * keyed per recording only, so that traces never contain the original, potentially
+ * sensitive, keys, and hashes cannot be matched against hashes of guessed keys.
+ */
+@Immutable
+public final class TraceEvent {
+
+	/**
+	 * Type of the recorded event.
+	 */
+	public enum Type {
+		/** A key resolved to a derived key; both hashes are set. */
+		ACCESS,
+		/** A value loaded for a derived key; the key hash is zero. */
+		LOAD,
+		/** A value evicted for a derived key; the key hash is zero. */
+		EVICTION
+	}
+
+	private final Type type;
+
+	private final long timeNanos;
+
+	private final long keyHash;
+
+	private final long derivedKeyHash;
+
+	public TraceEvent(@Nonnull Type type, long timeNanos, long keyHash, long derivedKeyHash) {
+		this.type = type;
+		this.timeNanos = timeNanos;
+		this.keyHash = keyHash;
+		this.derivedKeyHash = derivedKeyHash;
+	}
+
+	@Nonnull
+	public Type type() {
+		return type;
+	}
+
+	/**
+	 * @return the time of the event in nanoseconds since the start of the recording
+	 */
+	public long timeNanos() {
+		return timeNanos;
+	}
+
+	public long keyHash() {
+		return keyHash;
+	}
+
+	public long derivedKeyHash() {
+		return derivedKeyHash;
+	}
+
+	@Override
+	public String toString() {
+		return type + "@" + timeNanos + "{" + Long.toHexString(keyHash) + "->" + Long.toHexString(derivedKeyHash) + "}";
+	}
+}
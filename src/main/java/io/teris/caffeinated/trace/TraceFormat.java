@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated.trace;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+
+/**
+ * The binary trace format: a header of a magic number and a version followed by
+ * fixed-size records of a type byte, the time since start of recording and the key and
+ * derived-key hashes, keyed per recording by {@code KeyHasher}.
+ */
+final class TraceFormat {
+
+	static final int MAGIC = 0x43465452; // CFTR
+
+	static final int VERSION = 1;
+
+	static final int RECORD_BYTES = 1 + 3 * Long.BYTES;
+
+	private TraceFormat() {
+	}
+
+	static void writeHeader(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+	}
+
+	static void readHeader(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("not a caffeinated trace");
+		}
+		int version = in.readInt();
+		if (version != VERSION) {
+			throw new IOException("unsupported trace version " + version);
+		}
+	}
+
+	static void write(DataOutputStream out, int type, long timeNanos, long keyHash, long derivedKeyHash) throws IOException {
+		out.writeByte(type);
+		out.writeLong(timeNanos);
+		out.writeLong(keyHash);
+		out.writeLong(derivedKeyHash);
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated.trace;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+
+/**
+ * TraceReader reads the events of a trace file written by the {@code TraceRecorder}
+ * sequentially.
+ */
+public final class TraceReader implements AutoCloseable {
+
+	private static final TraceEvent.Type[] TYPES = TraceEvent.Type.values();
+
+	private final DataInputStream in;
+
+	private TraceReader(DataInputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Opens the trace file for reading.
+	 *
+	 * @param file the trace file
+	 * @return the reader
+	 * @throws IOException if the file cannot be opened or is not a trace file
+	 */
+	@Nonnull
+	public static TraceReader open(@Nonnull Path file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+		try {
+			TraceFormat.readHeader(in);
+		} catch (IOException ex) {
+			in.close();
+			throw ex;
+		}
+		return new TraceReader(in);
+	}
+
+	/**
+	 * Reads the next event.
+	 *
+	 * @return the next event or null at the end of the trace
+	 * @throws IOException if the trace cannot be read or is corrupt
+	 */
+	@Nullable
+	public TraceEvent next() throws IOException {
+		int type = in.read();
+		if (type < 0) {
+			return null;
+		}
+		if (type >= TYPES.length) {
+			throw new IOException("corrupt trace: unknown event type " + type);
+		}
+		try {
+			return new TraceEvent(TYPES[type], in.readLong(), in.readLong(), in.readLong());
+		} catch (EOFException ex) {
+			throw new IOException("corrupt trace: truncated record", ex);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
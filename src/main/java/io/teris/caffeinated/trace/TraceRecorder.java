@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated.trace;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+
+/**
+ * TraceRecorder appends access, load and eviction events of a multikey cache to a compact
+ * binary trace file for offline analysis with the {@code TraceSimulator}.
+ * <p>
+ * Recording threads never block and never perform IO: events are claimed into a bounded
+ * lock-free ring buffer and drained to the file by a single background thread. If the
+ * ring buffer is full the event is dropped and counted instead.
+ * <p>
+ * Keys are recorded as hashes keyed by a random seed of the recording, which is not
+ * written, so that the identifiers are consistent within the trace only.
+ */
+@ThreadSafe
+public final class TraceRecorder implements AutoCloseable {
+
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+
+	private static final int FIELDS = 4;
+
+	private final int mask;
+
+	private final AtomicLongArray slots;
+
+	private final AtomicLongArray published;
+
+	private final AtomicLong tail = new AtomicLong(0);
+
+	private volatile long head = 0;
+
+	private final LongAdder dropped = new LongAdder();
+
+	private final KeyHasher hasher = KeyHasher.random();
+
+	private final long startNanos = System.nanoTime();
+
+	private final DataOutputStream out;
+
+	private final Thread drainer;
+
+	private volatile boolean closed = false;
+
+	private volatile IOException failure = null;
+
+	private TraceRecorder(DataOutputStream out, int capacity) {
+		this.out = out;
+		this.mask = capacity - 1;
+		this.slots = new AtomicLongArray(capacity * FIELDS);
+		this.published = new AtomicLongArray(capacity);
+		this.drainer = new Thread(this::drain, "caffeinated-trace");
+		this.drainer.setDaemon(true);
+		this.drainer.start();
+	}
+
+	/**
+	 * Opens a recorder writing to the given file with the default ring buffer capacity.
+	 *
+	 * @param file the file to write the trace to, replaced if it exists
+	 * @return the recorder
+	 * @throws IOException if the file cannot be opened
+	 */
+	@Nonnull
+	public static TraceRecorder open(@Nonnull Path file) throws IOException {
+		return open(file, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Opens a recorder writing to the given file.
+	 *
+	 * @param file the file to write the trace to, replaced if it exists
+	 * @param capacity the ring buffer capacity in events, a power of two
+	 * @return the recorder
+	 * @throws IOException if the file cannot be opened
+	 */
+	@Nonnull
+	public static TraceRecorder open(@Nonnull Path file, int capacity) throws IOException {
+		if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("capacity must be a positive power of two");
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+		TraceFormat.writeHeader(out);
+		return new TraceRecorder(out, capacity);
+	}
+
+	/**
+	 * Records the resolution of the key to the derived key.
+	 */
+	public void recordAccess(@Nonnull Object key, @Nonnull Object derivedKey) {
+		record(TraceEvent.Type.ACCESS, hasher.hash(key), hasher.hash(derivedKey));
+	}
+
+	/**
+	 * Records a value load for the derived key.
+	 */
+	public void recordLoad(@Nonnull Object derivedKey) {
+		record(TraceEvent.Type.LOAD, 0L, hasher.hash(derivedKey));
+	}
+
+	/**
+	 * Records the eviction of the value for the derived key.
+	 */
+	public void recordEviction(@Nonnull Object derivedKey) {
+		record(TraceEvent.Type.EVICTION, 0L, hasher.hash(derivedKey));
+	}
+
+	/**
+	 * @return the number of events dropped because the ring buffer was full
+	 */
+	public long droppedCount() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Drains the recorded events to the file and closes it.
+	 *
+	 * @throws UncheckedIOException if writing the trace failed
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		LockSupport.unpark(drainer);
+		try {
+			drainer.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		if (failure != null) {
+			throw new UncheckedIOException(failure);
+		}
+	}
+
+	private void record(TraceEvent.Type type, long keyHash, long derivedKeyHash) {
+		if (closed) {
+			return;
+		}
+		long seq;
+		do {
+			seq = tail.get();
+			if (seq - head > mask) {
+				dropped.increment();
+				return;
+			}
+		} while (!tail.compareAndSet(seq, seq + 1));
+		int slot = (int) (seq & mask);
+		int base = slot * FIELDS;
+		slots.lazySet(base, type.ordinal());
+		slots.lazySet(base + 1, System.nanoTime() - startNanos);
+		slots.lazySet(base + 2, keyHash);
+		slots.lazySet(base + 3, derivedKeyHash);
+		// publishing the sequence makes the slot visible to the drainer
+		published.set(slot, seq + 1);
+	}
+
+	private void drain() {
+		try {
+			while (true) {
+				long seq = head;
+				int slot = (int) (seq & mask);
+				if (published.get(slot) == seq + 1) {
+					int base = slot * FIELDS;
+					TraceFormat.write(out, (int) slots.get(base), slots.get(base + 1), slots.get(base + 2), slots.get(base + 3));
+					head = seq + 1;
+				} else if (closed && tail.get() == seq) {
+					break;
+				} else {
+					out.flush();
+					LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+				}
+			}
+		} catch (IOException ex) {
+			failure = ex;
+		} finally {
+			try {
+				out.close();
+			} catch (IOException ex) {
+				if (failure == null) {
+					failure = ex;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated.trace;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import javax.annotation.Nonnull;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+
+/**
+ * TraceSimulator replays a trace recorded by the {@code TraceRecorder} against multikey
+ * cache configurations with different maximum sizes, access expiries and alias index
+ * bounds, reporting hit rates, the number of key mapper and value loader calls and the
+ * estimated peak memory of each configuration. Time is replayed from the trace, so
+ * expiries behave as in production independently of the replay speed.
+ * <p>
+ * Usage: {@code TraceSimulator <trace-file> [--sizes=0,10000] [--expiries=0,PT5M]
+ * [--alias-bounds=0] [--value-bytes=512] [--alias-bytes=128]}, where 0 stands for
+ * unbounded sizes and no expiry.
+ */
+public final class TraceSimulator {
+
+	/**
+	 * The outcome of replaying a trace against one cache configuration.
+	 */
+	public static final class Result {
+
+		public final long maximumSize;
+
+		public final Duration expireAfterAccess;
+
+		public final long aliasBound;
+
+		public final long requests;
+
+		public final long valueHits;
+
+		public final long aliasHits;
+
+		public final long loads;
+
+		public final long recordedLoads;
+
+		public final long peakBytes;
+
+		Result(long maximumSize, Duration expireAfterAccess, long aliasBound, long requests, long valueHits, long aliasHits,
+			long loads, long recordedLoads, long peakBytes) {
+			this.maximumSize = maximumSize;
+			this.expireAfterAccess = expireAfterAccess;
+			this.aliasBound = aliasBound;
+			this.requests = requests;
+			this.valueHits = valueHits;
+			this.aliasHits = aliasHits;
+			this.loads = loads;
+			this.recordedLoads = recordedLoads;
+			this.peakBytes = peakBytes;
+		}
+
+		public double hitRate() {
+			return requests == 0 ? 0.0 : (double) valueHits / requests;
+		}
+
+		public double aliasHitRate() {
+			return requests == 0 ? 0.0 : (double) aliasHits / requests;
+		}
+	}
+
+	private static final int MEMORY_SAMPLE_INTERVAL = 1024;
+
+	private TraceSimulator() {
+	}
+
+	/**
+	 * Replays the trace against a single cache configuration.
+	 *
+	 * @param trace the trace file
+	 * @param maximumSize the maximum number of values, 0 for unbounded
+	 * @param expireAfterAccess the access expiry of values, zero for none
+	 * @param aliasBound the maximum number of entries in the alias index, 0 for unbounded
+	 * @param valueBytes the estimated bytes per cached value including its derived key
+	 * @param aliasBytes the estimated bytes per alias index entry
+	 * @return the simulation result
+	 * @throws IOException if the trace cannot be read
+	 */
+	@Nonnull
+	public static Result simulate(@Nonnull Path trace, long maximumSize, @Nonnull Duration expireAfterAccess, long aliasBound,
+		long valueBytes, long aliasBytes) throws IOException {
+		long[] now = {0L};
+		Map<Long, Set<Long>> derivedKey2Keys = new HashMap<>();
+
+		Caffeine<Object, Object> aliasBuilder = Caffeine.newBuilder()
+			.executor(Runnable::run)
+			.ticker(() -> now[0]);
+		if (aliasBound > 0) {
+			aliasBuilder.maximumSize(aliasBound);
+		}
+		Cache<Long, Long> keys2derivedKey = aliasBuilder
+			.removalListener((Long key, Long derivedKey, RemovalCause cause) -> {
+				Set<Long> keys = derivedKey != null ? derivedKey2Keys.get(derivedKey) : null;
+				if (keys != null && cause != RemovalCause.EXPLICIT) {
+					keys.remove(key);
+				}
+			})
+			.build();
+
+		Caffeine<Object, Object> valueBuilder = Caffeine.newBuilder()
+			.executor(Runnable::run)
+			.ticker(() -> now[0]);
+		if (maximumSize > 0) {
+			valueBuilder.maximumSize(maximumSize);
+		}
+		if (!expireAfterAccess.isZero()) {
+			valueBuilder.expireAfterAccess(expireAfterAccess.toNanos(), TimeUnit.NANOSECONDS);
+		}
+		Cache<Long, Boolean> values = valueBuilder
+			.removalListener((Long derivedKey, Boolean value, RemovalCause cause) -> {
+				Set<Long> keys = derivedKey2Keys.remove(derivedKey);
+				if (keys != null) {
+					keys2derivedKey.invalidateAll(keys);
+				}
+			})
+			.build();
+
+		long requests = 0;
+		long valueHits = 0;
+		long aliasHits = 0;
+		long loads = 0;
+		long recordedLoads = 0;
+		long peakBytes = 0;
+		try (TraceReader reader = TraceReader.open(trace)) {
+			for (TraceEvent event = reader.next(); event != null; event = reader.next()) {
+				now[0] = event.timeNanos();
+				if (event.type() == TraceEvent.Type.LOAD) {
+					recordedLoads++;
+					continue;
+				} else if (event.type() != TraceEvent.Type.ACCESS) {
+					continue;
+				}
+				requests++;
+				Long derivedKey = event.derivedKeyHash();
+				if (keys2derivedKey.getIfPresent(event.keyHash()) != null) {
+					aliasHits++;
+				} else {
+					keys2derivedKey.put(event.keyHash(), derivedKey);
+					derivedKey2Keys.computeIfAbsent(derivedKey, $ -> new HashSet<>()).add(event.keyHash());
+				}
+				if (values.getIfPresent(derivedKey) != null) {
+					valueHits++;
+				} else {
+					loads++;
+					values.put(derivedKey, Boolean.TRUE);
+				}
+				if (requests % MEMORY_SAMPLE_INTERVAL == 0) {
+					peakBytes = Math.max(peakBytes, values.estimatedSize() * valueBytes + keys2derivedKey.estimatedSize() * aliasBytes);
+				}
+			}
+		}
+		peakBytes = Math.max(peakBytes, values.estimatedSize() * valueBytes + keys2derivedKey.estimatedSize() * aliasBytes);
+		return new Result(maximumSize, expireAfterAccess, aliasBound, requests, valueHits, aliasHits, loads, recordedLoads, peakBytes);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("usage: TraceSimulator <trace-file> [--sizes=0,10000] [--expiries=0,PT5M] "
+				+ "[--alias-bounds=0] [--value-bytes=512] [--alias-bytes=128]");
+			System.exit(1);
+		}
+		Path trace = Paths.get(args[0]);
+		Map<String, String> options = new HashMap<>();
+		for (String arg : Arrays.asList(args).subList(1, args.length)) {
+			String[] parts = arg.replaceFirst("^--", "").split("=", 2);
+			options.put(parts[0], parts.length > 1 ? parts[1] : "");
+		}
+		List<Long> sizes = parseLongs(options.getOrDefault("sizes", "0"));
+		List<Duration> expiries = Arrays.stream(options.getOrDefault("expiries", "0").split(","))
+			.map(String::trim)
+			.map(value -> "0".equals(value) ? Duration.ZERO : Duration.parse(value))
+			.collect(Collectors.toList());
+		List<Long> aliasBounds = parseLongs(options.getOrDefault("alias-bounds", "0"));
+		long valueBytes = Long.parseLong(options.getOrDefault("value-bytes", "512"));
+		long aliasBytes = Long.parseLong(options.getOrDefault("alias-bytes", "128"));
+
+		List<Result> results = new ArrayList<>();
+		for (long size : sizes) {
+			for (Duration expiry : expiries) {
+				for (long aliasBound : aliasBounds) {
+					results.add(simulate(trace, size, expiry, aliasBound, valueBytes, aliasBytes));
+				}
+			}
+		}
+		report(results, System.out);
+	}
+
+	static void report(List<Result> results, PrintStream out) {
+		out.printf("%12s %12s %12s %12s %10s %10s %12s %12s %14s%n",
+			"max-size", "expiry", "alias-bound", "requests", "hit-rate", "alias-hit", "loads", "trace-loads", "peak-bytes");
+		for (Result res : results) {
+			out.printf("%12s %12s %12s %12d %9.2f%% %9.2f%% %12d %12d %14d%n",
+				res.maximumSize > 0 ? String.valueOf(res.maximumSize) : "-",
+				res.expireAfterAccess.isZero() ? "-" : res.expireAfterAccess.toString(),
+				res.aliasBound > 0 ? String.valueOf(res.aliasBound) : "-",
+				res.requests, 100.0 * res.hitRate(), 100.0 * res.aliasHitRate(), res.loads, res.recordedLoads, res.peakBytes);
+		}
+	}
+
+	private static List<Long> parseLongs(String values) {
+		return Arrays.stream(values.split(","))
+			.map(String::trim)
+			.map(Long::parseLong)
+			.collect(Collectors.toList());
+	}
+}
@@ -4,24 +4,49 @@
 
 package io.teris.caffeinated;
 
+import static org.awaitility.Awaitility.await;
+import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.stream.Collectors;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Policy;
+import com.github.benmanes.caffeine.cache.RemovalCause;
 
 
 public class CaffeinatedMultikeyCacheTest {
@@ -82,4 +107,962 @@ public class CaffeinatedMultikeyCacheTest {
 		cache.invalidate("aaa");
 		assertEquals(keys, removed.get(5, TimeUnit.SECONDS));
 	}
+
+	@Test
+	public void put_writeThrough_writtenBeforeCaching_deletedOnInvalidate() throws Exception {
+		List<String> written = new CopyOnWriteArrayList<>();
+		CompletableFuture<RemovalCause> deleted = new CompletableFuture<>();
+
+		AsyncMultikeyCache<String, String, Integer> cache = AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder())
+			.writer(new MultikeyCacheWriter<String, String, Integer>() {
+				@Override
+				public void write(String derivedKey, Integer value) {
+					written.add(derivedKey + "=" + value);
+				}
+
+				@Override
+				public void delete(String derivedKey, Integer value, Set<String> keys, RemovalCause cause) {
+					deleted.complete(cause);
+				}
+			})
+			.buildAsync();
+
+		assertEquals(Integer.valueOf(3), cache.get("aaa", String::toUpperCase, (key, derivedKey) -> key.length()).get(5, TimeUnit.SECONDS));
+		assertEquals(0, written.size());
+
+		cache.put("AAA", 42);
+		assertEquals(Arrays.asList("AAA=42"), written);
+		assertEquals(Integer.valueOf(42), cache.getIfPresent("aaa"));
+
+		cache.invalidate("aaa");
+		assertEquals(RemovalCause.EXPLICIT, deleted.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void put_writeThroughFails_valueNotCached() {
+		AsyncMultikeyCache<String, String, Integer> cache = AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder())
+			.writer(new MultikeyCacheWriter<String, String, Integer>() {
+				@Override
+				public void write(String derivedKey, Integer value) {
+					throw new IllegalStateException("store unavailable");
+				}
+
+				@Override
+				public void delete(String derivedKey, Integer value, Set<String> keys, RemovalCause cause) {
+				}
+			})
+			.buildAsync();
+
+		exception.expectMessage("store unavailable");
+		try {
+			cache.put("AAA", 42);
+		} catch (IllegalStateException ex) {
+			assertNull(cache.getByDerivedKeyIfPresent("AAA"));
+			throw ex;
+		}
+	}
+
+	@Test
+	public void put_writeBehind_coalescedAndFlushedOnClose() {
+		List<Map<String, Integer>> batches = new CopyOnWriteArrayList<>();
+
+		AsyncMultikeyCache<String, String, Integer> cache = AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder())
+			.writeBehind(new MultikeyCacheWriter<String, String, Integer>() {
+				@Override
+				public void write(String derivedKey, Integer value) {
+					throw new UnsupportedOperationException("batches expected");
+				}
+
+				@Override
+				public void writeAll(Map<String, Integer> entries) {
+					batches.add(entries);
+				}
+
+				@Override
+				public void delete(String derivedKey, Integer value, Set<String> keys, RemovalCause cause) {
+				}
+			}, 100, Duration.ofHours(1), 1000)
+			.buildAsync();
+
+		for (int i = 0; i < 10; i++) {
+			cache.put("AAA", i);
+			cache.put("BBB", 10 * i);
+		}
+		assertEquals(0, batches.size());
+
+		cache.close();
+		assertEquals(1, batches.size());
+		assertEquals(Integer.valueOf(9), batches.get(0).get("AAA"));
+		assertEquals(Integer.valueOf(90), batches.get(0).get("BBB"));
+	}
+
+	@Test
+	public void put_writeBehindWriterFails_boundedByMaxPendingAndRetriedInBackground() throws Exception {
+		AtomicBoolean failing = new AtomicBoolean(true);
+		AtomicInteger attempts = new AtomicInteger(0);
+		List<Map<String, Integer>> batches = new CopyOnWriteArrayList<>();
+
+		AsyncMultikeyCache<String, String, Integer> cache = AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder())
+			.writeBehind(new MultikeyCacheWriter<String, String, Integer>() {
+				@Override
+				public void write(String derivedKey, Integer value) {
+					throw new UnsupportedOperationException("batches expected");
+				}
+
+				@Override
+				public void writeAll(Map<String, Integer> entries) {
+					attempts.incrementAndGet();
+					if (failing.get()) {
+						throw new IllegalStateException("backend down");
+					}
+					batches.add(entries);
+				}
+
+				@Override
+				public void delete(String derivedKey, Integer value, Set<String> keys, RemovalCause cause) {
+				}
+			}, 2, Duration.ofHours(1), 2)
+			.buildAsync();
+
+		cache.put("AAA", 1);
+		cache.put("BBB", 2);
+		await().atMost(5, TimeUnit.SECONDS).until(() -> attempts.get() > 0);
+		// coalesced into the pending derived key, while further derived keys are rejected
+		cache.put("AAA", 3);
+		try {
+			cache.put("CCC", 4);
+			throw new AssertionError("rejection expected");
+		} catch (RejectedExecutionException ex) {
+			// expected
+		}
+		assertEquals(Integer.valueOf(3), cache.getByDerivedKeyIfPresent("AAA"));
+		assertNull(cache.getByDerivedKeyIfPresent("CCC"));
+
+		failing.set(false);
+		await().atMost(5, TimeUnit.SECONDS).until(() -> batches.size() == 1);
+		assertEquals(Integer.valueOf(3), batches.get(0).get("AAA"));
+		assertEquals(Integer.valueOf(2), batches.get(0).get("BBB"));
+
+		cache.put("CCC", 4);
+		cache.close();
+		assertEquals(2, batches.size());
+	}
+
+	@Test
+	public void put_writeBehindThenEvicted_writeDeliveredBeforeDelete() {
+		List<String> operations = new CopyOnWriteArrayList<>();
+
+		AsyncMultikeyCache<String, String, Integer> cache = AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder()
+			.maximumSize(1))
+			.executor(Runnable::run)
+			.writeBehind(new MultikeyCacheWriter<String, String, Integer>() {
+				@Override
+				public void write(String derivedKey, Integer value) {
+					operations.add("write " + derivedKey + "=" + value);
+				}
+
+				@Override
+				public void delete(String derivedKey, Integer value, Set<String> keys, RemovalCause cause) {
+					operations.add("delete " + derivedKey + " " + cause);
+				}
+			}, 100, Duration.ofHours(1), 1000)
+			.buildAsync();
+
+		cache.put("AAA", 1);
+		cache.put("BBB", 2);
+		assertNull(cache.getByDerivedKeyIfPresent("AAA"));
+
+		cache.close();
+		assertEquals(Arrays.asList("write AAA=1", "write BBB=2", "delete AAA SIZE"), operations);
+	}
+
+	@Test
+	public void get_withTimeout_timesOutWithoutPoisoningSharedLoad() throws Exception {
+		CountDownLatch latch = new CountDownLatch(1);
+		AsyncMultikeyCache<String, String, Integer> cache = AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder())
+			.keyMapper(String::toUpperCase)
+			.valueLoader((key, derivedKey) -> {
+				try {
+					latch.await();
+				} catch (InterruptedException ex) {
+					throw new IllegalStateException(ex);
+				}
+				return key.length();
+			})
+			.buildAsync();
+
+		CompletableFuture<Integer> shared = cache.get("aaa");
+		try {
+			cache.get("aAa", Duration.ofMillis(50)).get(5, TimeUnit.SECONDS);
+			throw new AssertionError("timeout expected");
+		} catch (ExecutionException ex) {
+			assertTrue(ex.getCause() instanceof TimeoutException);
+		}
+
+		latch.countDown();
+		assertEquals(Integer.valueOf(3), shared.get(5, TimeUnit.SECONDS));
+		assertEquals(Integer.valueOf(3), cache.get("aAa", Duration.ofMillis(50)).get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void get_hedgedLoad_fasterAttemptWins() throws Exception {
+		AtomicInteger loaderCalled = new AtomicInteger(0);
+		AsyncMultikeyCache<String, String, Integer> cache = AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder())
+			.hedging(HedgingPolicy.fixedDelay(Duration.ofMillis(50)))
+			.buildAsync();
+
+		long start = System.nanoTime();
+		Integer value = cache.get("aaa", String::toUpperCase, (key, derivedKey) -> {
+			if (loaderCalled.incrementAndGet() == 1) {
+				try {
+					Thread.sleep(5000);
+				} catch (InterruptedException ex) {
+					throw new IllegalStateException(ex);
+				}
+				return -1;
+			}
+			return key.length();
+		}).get(5, TimeUnit.SECONDS);
+
+		assertEquals(Integer.valueOf(3), value);
+		assertEquals(2, loaderCalled.get());
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+	}
+
+	@Test
+	public void get_loaderFailsAfterExpiry_staleServedAndRecoveredInBackground() throws Exception {
+		AtomicLong ticker = new AtomicLong(0);
+		AtomicBoolean backendDown = new AtomicBoolean(false);
+		AtomicInteger loaderCalled = new AtomicInteger(0);
+
+		CaffeinatedMultikeyCache<String, String, Integer> cache = (CaffeinatedMultikeyCache<String, String, Integer>)
+			AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder()
+				.ticker(ticker::get)
+				.expireAfterWrite(1, TimeUnit.MINUTES))
+				.keyMapper(String::toUpperCase)
+				.valueLoader((key, derivedKey) -> {
+					if (backendDown.get()) {
+						throw new IllegalStateException("backend down");
+					}
+					return key.length() + 10 * loaderCalled.getAndIncrement();
+				})
+				.staleIfError(Duration.ofMinutes(10), Duration.ofMillis(10))
+				.ticker(ticker::get)
+				.buildAsync();
+
+		assertEquals(Integer.valueOf(3), cache.get("aaa").get(5, TimeUnit.SECONDS));
+
+		backendDown.set(true);
+		// the grace tier follows the ticker set on the builder, so the grace period outlasts the steps
+		// the write time is only stamped once caffeine has processed the completed load
+		await().until(() -> {
+			ticker.addAndGet(TimeUnit.MINUTES.toNanos(2));
+			cache.cache.synchronous().cleanUp();
+			return cache.graceStats().retainedCount();
+		}, is(1L));
+		assertNull(cache.getIfPresent("aaa"));
+
+		assertEquals(Integer.valueOf(3), cache.get("aaa").get(5, TimeUnit.SECONDS));
+		assertEquals(1, cache.graceStats().staleServedCount());
+
+		backendDown.set(false);
+		await().until(() -> cache.graceStats().recoveredCount(), is(1L));
+		assertEquals(Integer.valueOf(13), cache.getByDerivedKeyIfPresent("AAA"));
+		assertEquals(0, cache.graceStats().retainedCount());
+		// the recovered value is cached without its keys, which are mapped anew
+		assertNull(cache.getDerivedKeyIfPresent("aaa"));
+		assertEquals(Integer.valueOf(13), cache.get("aaa").get(5, TimeUnit.SECONDS));
+		assertEquals(2, loaderCalled.get());
+	}
+
+	@Test
+	public void get_mapperFailsAfterExpiry_failurePropagatedNothingServedStale() throws Exception {
+		AtomicLong ticker = new AtomicLong(0);
+		AtomicBoolean revoked = new AtomicBoolean(false);
+
+		CaffeinatedMultikeyCache<String, String, Integer> cache = (CaffeinatedMultikeyCache<String, String, Integer>)
+			AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder()
+				.ticker(ticker::get)
+				.expireAfterWrite(1, TimeUnit.MINUTES))
+				.keyMapper(key -> {
+					if (revoked.get()) {
+						throw new SecurityException("account disabled");
+					}
+					return key.toUpperCase();
+				})
+				.valueLoader((key, derivedKey) -> key.length())
+				.staleIfError(Duration.ofMinutes(10), Duration.ofMillis(10))
+				.ticker(ticker::get)
+				.buildAsync();
+
+		assertEquals(Integer.valueOf(3), cache.get("aaa").get(5, TimeUnit.SECONDS));
+		await().until(() -> {
+			ticker.addAndGet(TimeUnit.MINUTES.toNanos(2));
+			cache.cache.synchronous().cleanUp();
+			return cache.graceStats().retainedCount();
+		}, is(1L));
+
+		revoked.set(true);
+		try {
+			cache.get("aaa").get(5, TimeUnit.SECONDS);
+			throw new AssertionError("mapper failure expected");
+		} catch (ExecutionException ex) {
+			assertTrue(ex.getCause() instanceof SecurityException);
+		}
+		assertEquals(0, cache.graceStats().staleServedCount());
+		assertNull(cache.getDerivedKeyIfPresent("aaa"));
+	}
+
+	@Test
+	public void staleIfError_maximumWeightWithoutWeigher_rejectedOnBuild() {
+		exception.expect(IllegalStateException.class);
+		exception.expectMessage("requires the weigher");
+		AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder()
+			.maximumWeight(100)
+			.weigher((Object derivedKey, Object value) -> 1))
+			.staleIfError(Duration.ofMinutes(10), Duration.ofMillis(10))
+			.buildAsync();
+	}
+
+	@Test
+	public void staleIfError_evictionChurn_retainedBoundedByCacheMaximum() throws Exception {
+		CaffeinatedMultikeyCache<String, String, Integer> cache = (CaffeinatedMultikeyCache<String, String, Integer>)
+			AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder()
+				.maximumSize(3))
+				.keyMapper(String::toUpperCase)
+				.valueLoader((key, derivedKey) -> key.length())
+				.staleIfError(Duration.ofHours(1), Duration.ofMillis(10))
+				.executor(Runnable::run)
+				.buildAsync();
+
+		for (int i = 0; i < 100; i++) {
+			cache.get("key-" + i).get(5, TimeUnit.SECONDS);
+		}
+		cache.cache.synchronous().cleanUp();
+		await().until(() -> cache.graceStats().retainedCount() <= 3, is(true));
+		assertTrue(cache.graceStats().retainedCount() > 0);
+	}
+
+	@Test
+	public void fingerprintAliases_onlyFingerprintsRetained_listenerReceivesFingerprints() throws Exception {
+		CompletableFuture<Set<AliasFingerprint>> removed = new CompletableFuture<>();
+		Function<String, byte[]> encoder = key -> key.getBytes(StandardCharsets.UTF_8);
+
+		FingerprintingMultikeyCache<String, String, Integer> cache = (FingerprintingMultikeyCache<String, String, Integer>)
+			AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder())
+				.keyMapper(String::toUpperCase)
+				.valueLoader((key, derivedKey) -> key.length())
+				.fingerprintAliases(encoder, (fingerprints, value, cause) -> removed.complete(fingerprints))
+				.buildAsync();
+
+		Set<String> keys = new HashSet<>(Arrays.asList("aaa", "aAa", "AaA"));
+		for (String key : keys) {
+			assertEquals(Integer.valueOf(3), cache.get(key).get(5, TimeUnit.SECONDS));
+		}
+		assertEquals("AAA", cache.getDerivedKeyIfPresent("aAa"));
+		assertNull(cache.getDerivedKeyIfPresent("bbb"));
+
+		Set<AliasFingerprint> fingerprints = keys.stream()
+			.map(cache::fingerprint)
+			.collect(Collectors.toSet());
+		assertEquals(fingerprints, cache.index.keySet());
+		assertEquals(0, cache.delegate.keys2derivedKey.synchronous().estimatedSize());
+
+		cache.invalidate("AaA");
+		assertEquals(fingerprints, removed.get(5, TimeUnit.SECONDS));
+		assertTrue(removed.get().stream().anyMatch(fingerprint -> fingerprint.matches(encoder.apply("aAa"))));
+		assertFalse(removed.get().stream().anyMatch(fingerprint -> fingerprint.matches(encoder.apply("bbb"))));
+	}
+
+	@Test
+	public void fingerprintAliases_indexedKey_servedWithoutMappingAgain() throws Exception {
+		AtomicInteger mapperCalled = new AtomicInteger(0);
+		FingerprintingMultikeyCache<String, String, String> cache = (FingerprintingMultikeyCache<String, String, String>)
+			AsyncMultikeyCache.<String, String, String>newBuilder(Caffeine.newBuilder())
+				.keyMapper(key -> {
+					mapperCalled.incrementAndGet();
+					return key.toUpperCase();
+				})
+				.valueLoader((key, derivedKey) -> "value-" + derivedKey)
+				.fingerprintAliases(key -> key.getBytes(StandardCharsets.UTF_8), null)
+				.buildAsync();
+
+		for (int i = 0; i < 10; i++) {
+			assertEquals("value-AAA", cache.get("aaa").get(5, TimeUnit.SECONDS));
+		}
+		assertEquals(1, mapperCalled.get());
+		assertEquals("AAA", cache.index.get(cache.fingerprint("aaa")));
+
+		cache.invalidate("aaa");
+		await().until(() -> cache.indexes("aaa"), is(false));
+		assertEquals("value-AAA", cache.get("aaa").get(5, TimeUnit.SECONDS));
+		assertEquals(2, mapperCalled.get());
+	}
+
+	@Test
+	public void get_keyCascade_eachStageMappedOnMissOnly_singleEvictionFanOut() throws Exception {
+		AtomicInteger tokenMapperCalled = new AtomicInteger(0);
+		AtomicInteger sessionMapperCalled = new AtomicInteger(0);
+		AtomicInteger loaderCalled = new AtomicInteger(0);
+		CompletableFuture<Set<String>> removed = new CompletableFuture<>();
+
+		KeyCascade<String, String> cascade = KeyCascade.<String, String>of(token -> {
+			tokenMapperCalled.incrementAndGet();
+			return "session-" + token.charAt(0);
+		}).then(sessionId -> {
+			sessionMapperCalled.incrementAndGet();
+			return "user";
+		});
+
+		CaffeinatedMultikeyCache<String, String, Integer> cache = (CaffeinatedMultikeyCache<String, String, Integer>)
+			AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder())
+				.keyMapper(cascade)
+				.valueLoader((token, userId) -> loaderCalled.incrementAndGet())
+				.removalListener((keys, value, cause) -> removed.complete(keys))
+				.buildAsync();
+
+		// a1, a2 share session-a; b1 has session-b for the same user
+		for (String token : Arrays.asList("a1", "a2", "b1", "a1")) {
+			assertEquals(Integer.valueOf(1), cache.get(token).get(5, TimeUnit.SECONDS));
+		}
+		assertEquals(3, tokenMapperCalled.get());
+		assertEquals(2, sessionMapperCalled.get());
+		assertEquals(1, loaderCalled.get());
+		assertEquals(5, cache.keys2derivedKey.synchronous().asMap().size());
+
+		cache.invalidate("a2");
+		assertEquals(new HashSet<>(Arrays.asList("a1", "a2", "b1")), removed.get(5, TimeUnit.SECONDS));
+		await().until(() -> cache.keys2derivedKey.synchronous().asMap().size(), is(0));
+	}
+
+	@Test
+	public void proactiveExpiration_idleCache_expiredValueAndAliasesEvicted() throws Exception {
+		CompletableFuture<Set<String>> removed = new CompletableFuture<>();
+
+		CaffeinatedMultikeyCache<String, String, Integer> cache = (CaffeinatedMultikeyCache<String, String, Integer>)
+			AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder()
+				.expireAfterAccess(200, TimeUnit.MILLISECONDS))
+				.keyMapper(String::toUpperCase)
+				.valueLoader((key, derivedKey) -> key.length())
+				.removalListener((keys, value, cause) -> {
+					if (cause == RemovalCause.EXPIRED) {
+						removed.complete(keys);
+					}
+				})
+				.proactiveExpiration(Duration.ofMillis(20))
+				.buildAsync();
+
+		assertEquals(Integer.valueOf(3), cache.get("aaa").get(5, TimeUnit.SECONDS));
+		assertEquals(Integer.valueOf(3), cache.get("aAa").get(5, TimeUnit.SECONDS));
+
+		// no further cache activity: only the scheduler can trigger the eviction
+		assertEquals(new HashSet<>(Arrays.asList("aaa", "aAa")), removed.get(2, TimeUnit.SECONDS));
+		await().until(() -> cache.keys2derivedKey.synchronous().asMap().size(), is(0));
+		cache.close();
+	}
+
+	@Test
+	public void proactiveExpiration_ticker_deadlinesFollowTicker() throws Exception {
+		AtomicLong ticker = new AtomicLong(0);
+		CompletableFuture<Set<String>> removed = new CompletableFuture<>();
+
+		AsyncMultikeyCache<String, String, Integer> cache = AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder()
+			.ticker(ticker::get)
+			.expireAfterAccess(1, TimeUnit.HOURS))
+			.keyMapper(String::toUpperCase)
+			.valueLoader((key, derivedKey) -> key.length())
+			.removalListener((keys, value, cause) -> {
+				if (cause == RemovalCause.EXPIRED) {
+					removed.complete(keys);
+				}
+			})
+			.ticker(ticker::get)
+			.proactiveExpiration(Duration.ofMillis(20))
+			.buildAsync();
+
+		assertEquals(Integer.valueOf(3), cache.get("aaa").get(5, TimeUnit.SECONDS));
+
+		// expired on the ticker only, hours before the system clock would get there
+		ticker.addAndGet(TimeUnit.HOURS.toNanos(2));
+		assertEquals(Collections.singleton("aaa"), removed.get(2, TimeUnit.SECONDS));
+		cache.close();
+	}
+
+	@Test
+	public void aliasAdmission_keySeenOnce_valueCachedWithoutAlias() throws Exception {
+		AtomicInteger loaderCalled = new AtomicInteger(0);
+
+		CaffeinatedMultikeyCache<String, String, Integer> cache = (CaffeinatedMultikeyCache<String, String, Integer>)
+			AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder())
+				.keyMapper(String::toUpperCase)
+				.valueLoader((key, derivedKey) -> key.length() + 10 * loaderCalled.getAndIncrement())
+				.aliasAdmission(1000)
+				.buildAsync();
+
+		assertEquals(Integer.valueOf(3), cache.get("aaa").get(5, TimeUnit.SECONDS));
+		assertNull(cache.getDerivedKeyIfPresent("aaa"));
+		assertEquals(Integer.valueOf(3), cache.getByDerivedKeyIfPresent("AAA"));
+		assertNull(cache.derivedKey2Keys.getIfPresent("AAA"));
+
+		assertEquals(Integer.valueOf(3), cache.get("aaa").get(5, TimeUnit.SECONDS));
+		assertEquals("AAA", cache.getDerivedKeyIfPresent("aaa"));
+
+		// a new key is not admitted yet but served from the cached value
+		assertEquals(Integer.valueOf(3), cache.get("aAa").get(5, TimeUnit.SECONDS));
+		assertNull(cache.getDerivedKeyIfPresent("aAa"));
+		assertEquals(1, loaderCalled.get());
+		assertEquals(1, cache.keys2derivedKey.synchronous().asMap().size());
+	}
+
+	@Test
+	public void aliasAdmission_keySeenOnceLoaderFails_servedStaleFromGraceTier() throws Exception {
+		AtomicBoolean failing = new AtomicBoolean(false);
+
+		CaffeinatedMultikeyCache<String, String, Integer> cache = (CaffeinatedMultikeyCache<String, String, Integer>)
+			AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder()
+				.maximumSize(100))
+				.keyMapper(String::toUpperCase)
+				.valueLoader((key, derivedKey) -> {
+					if (failing.get()) {
+						throw new IllegalStateException("backend down");
+					}
+					return key.length();
+				})
+				.aliasAdmission(1000)
+				.staleIfError(Duration.ofMinutes(10), Duration.ofMinutes(10))
+				.buildAsync();
+
+		assertEquals(Integer.valueOf(3), cache.get("aaa").get(5, TimeUnit.SECONDS));
+		assertEquals(Integer.valueOf(3), cache.get("aaa").get(5, TimeUnit.SECONDS));
+		cache.cache.synchronous().policy().eviction().ifPresent(eviction -> eviction.setMaximum(0));
+		cache.cache.synchronous().cleanUp();
+		await().until(() -> cache.graceStats().retainedCount() > 0, is(true));
+		cache.cache.synchronous().policy().eviction().ifPresent(eviction -> eviction.setMaximum(100));
+
+		failing.set(true);
+		// a one-time key of the same derived key falls back to the retained value
+		assertEquals(Integer.valueOf(3), cache.get("aAa").get(5, TimeUnit.SECONDS));
+		assertNull(cache.getDerivedKeyIfPresent("aAa"));
+	}
+
+	@Test
+	public void pin_sizePressure_pinnedRetainedWithAliasesColdEvicted() throws Exception {
+		List<String> removed = new CopyOnWriteArrayList<>();
+
+		CaffeinatedMultikeyCache<String, String, Integer> cache = (CaffeinatedMultikeyCache<String, String, Integer>)
+			AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder()
+				.maximumSize(3))
+				.keyMapper(String::toUpperCase)
+				.valueLoader((key, derivedKey) -> key.length())
+				.removalListener((keys, value, cause) -> removed.addAll(keys))
+				.pinningPredicate((derivedKey, value) -> derivedKey.startsWith("SYS"))
+				.executor(Runnable::run)
+				.buildAsync();
+
+		assertEquals(Integer.valueOf(3), cache.get("sys").get(5, TimeUnit.SECONDS));
+		assertEquals(Integer.valueOf(1), cache.get("a").get(5, TimeUnit.SECONDS));
+		cache.pin("A");
+		// both pinned values count against the maximum
+		assertEquals(1L, cache.cache.synchronous().policy().eviction().get().getMaximum());
+
+		for (String key : Arrays.asList("b", "c", "d", "e")) {
+			assertEquals(Integer.valueOf(1), cache.get(key).get(5, TimeUnit.SECONDS));
+		}
+		cache.cache.synchronous().cleanUp();
+		assertEquals(Integer.valueOf(3), cache.getIfPresent("sys"));
+		assertEquals(Integer.valueOf(1), cache.getIfPresent("a"));
+		assertTrue(cache.cache.synchronous().estimatedSize() <= 1);
+		assertEquals(new HashSet<>(Arrays.asList("b", "c", "d")), new HashSet<>(removed));
+
+		cache.unpin("A");
+		cache.cache.synchronous().cleanUp();
+		assertEquals(2L, cache.cache.synchronous().policy().eviction().get().getMaximum());
+		cache.invalidate("sys");
+		assertNull(cache.getIfPresent("sys"));
+		assertTrue(removed.contains("sys"));
+	}
+
+	@Test
+	public void pin_unpinnedBeforeMoveNotified_aliasesRetainedNothingRemoved() throws Exception {
+		List<String> removed = new CopyOnWriteArrayList<>();
+		Queue<Runnable> deferred = new ConcurrentLinkedQueue<>();
+		AtomicBoolean deferring = new AtomicBoolean(false);
+
+		CaffeinatedMultikeyCache<String, String, Integer> cache = (CaffeinatedMultikeyCache<String, String, Integer>)
+			AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder()
+				.maximumSize(3))
+				.keyMapper(String::toUpperCase)
+				.valueLoader((key, derivedKey) -> key.length())
+				.removalListener((keys, value, cause) -> removed.addAll(keys))
+				.executor(task -> {
+					if (deferring.get()) {
+						deferred.add(task);
+					} else {
+						task.run();
+					}
+				})
+				.buildAsync();
+
+		assertEquals(Integer.valueOf(3), cache.get("aaa").get(5, TimeUnit.SECONDS));
+		// the removal notification of the move is only delivered after the unpin
+		deferring.set(true);
+		cache.pin("AAA");
+		cache.unpin("AAA");
+		deferring.set(false);
+		deferred.forEach(Runnable::run);
+
+		assertTrue(removed.isEmpty());
+		assertEquals("AAA", cache.getDerivedKeyIfPresent("aaa"));
+		assertEquals(Integer.valueOf(3), cache.getIfPresent("aaa"));
+		assertEquals(1, cache.footprint().valueCount());
+
+		cache.invalidate("aaa");
+		assertEquals(Collections.singletonList("aaa"), removed);
+	}
+
+	@Test
+	public void buildPartitioned_noisyPartition_otherPartitionRetained() throws Exception {
+		AtomicInteger mapperCalled = new AtomicInteger(0);
+		List<String> removed = new CopyOnWriteArrayList<>();
+
+		PartitionedMultikeyCache<String, String, Integer, String> cache = AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder())
+			.keyMapper(key -> {
+				mapperCalled.incrementAndGet();
+				return key.toUpperCase();
+			})
+			.valueLoader((key, derivedKey) -> key.length())
+			.removalListener((keys, value, cause) -> removed.addAll(keys))
+			.executor(Runnable::run)
+			.buildPartitioned(derivedKey -> derivedKey.substring(0, 1), partition -> Caffeine.newBuilder()
+				.maximumSize(2)
+				.recordStats());
+
+		assertEquals(Integer.valueOf(3), cache.get("a-1").get(5, TimeUnit.SECONDS));
+		assertEquals(Integer.valueOf(3), cache.get("a-1").get(5, TimeUnit.SECONDS));
+		for (int i = 0; i < 10; i++) {
+			assertEquals(Integer.valueOf(3), cache.get("b-" + i).get(5, TimeUnit.SECONDS));
+		}
+		assertEquals(new HashSet<>(Arrays.asList("A", "B")), cache.partitions());
+		await().until(() -> cache.estimatedSize("B"), is(2L));
+
+		assertEquals(Integer.valueOf(3), cache.getIfPresent("a-1"));
+		assertEquals("A-1", cache.getDerivedKeyIfPresent("a-1"));
+		assertEquals(2L, cache.stats("A").hitCount());
+		assertEquals(1L, cache.stats("A").missCount());
+		assertEquals(0L, cache.stats("C").requestCount());
+		assertEquals(11, mapperCalled.get());
+		assertTrue(!removed.contains("a-1"));
+
+		cache.invalidate("a-1");
+		assertNull(cache.getIfPresent("a-1"));
+		await().until(() -> removed.contains("a-1"));
+		cache.close();
+	}
+
+	@Test
+	public void buildPartitioned_routingIndex_followsAliasIndexOfPartitions() throws Exception {
+		AtomicInteger mapperCalled = new AtomicInteger(0);
+
+		PartitionedCaffeinatedMultikeyCache<String, String, Integer, String> cache = (PartitionedCaffeinatedMultikeyCache<String, String, Integer, String>)
+			AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder())
+				.keyMapper(key -> {
+					mapperCalled.incrementAndGet();
+					return key.toUpperCase();
+				})
+				.valueLoader((key, derivedKey) -> key.length())
+				.executor(Runnable::run)
+				.buildPartitioned(derivedKey -> derivedKey.substring(0, 1), partition -> Caffeine.newBuilder()
+					.maximumSize(1));
+
+		assertEquals(Integer.valueOf(3), cache.get("a-1").get(5, TimeUnit.SECONDS));
+		assertEquals(Integer.valueOf(3), cache.get("b-1").get(5, TimeUnit.SECONDS));
+		assertEquals("A", cache.routes.get("a-1"));
+		assertEquals("B", cache.routes.get("b-1"));
+
+		// routed without mapping the key again
+		assertEquals(Integer.valueOf(3), cache.get("a-1").get(5, TimeUnit.SECONDS));
+		assertEquals(2, mapperCalled.get());
+
+		cache.invalidate("b-1");
+		assertNull(cache.routes.get("b-1"));
+
+		assertEquals(Integer.valueOf(3), cache.get("a-2").get(5, TimeUnit.SECONDS));
+		await().until(() -> cache.routes.containsKey("a-1"), is(false));
+		assertEquals(Collections.singletonMap("a-2", "A"), new HashMap<>(cache.routes));
+		cache.close();
+	}
+
+	@Test
+	public void footprint_maintainedIncrementallyPerTier() throws Exception {
+		AsyncMultikeyCache<String, String, Integer> cache = AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder())
+			.keyMapper(String::toUpperCase)
+			.valueLoader((key, derivedKey) -> key.length())
+			.footprintSizers(key -> 100, derivedKey -> 50, value -> 1000)
+			.buildAsync();
+
+		for (String key : Arrays.asList("aaa", "aAa", "bbb")) {
+			cache.get(key).get(5, TimeUnit.SECONDS);
+		}
+		Footprint footprint = cache.footprint();
+		assertEquals(2, footprint.valueCount());
+		assertEquals(3, footprint.aliasCount());
+		assertEquals(2 * (FootprintTracker.VALUE_ENTRY_OVERHEAD + 1050), footprint.valueBytes());
+		assertEquals(3 * (FootprintTracker.ALIAS_ENTRY_OVERHEAD + 100), footprint.aliasBytes());
+		assertEquals(2 * FootprintTracker.ALIAS_SET_OVERHEAD + 3 * FootprintTracker.ALIAS_SET_NODE_OVERHEAD, footprint.aliasSetBytes());
+
+		cache.invalidate("aaa");
+		await().until(() -> cache.footprint().aliasCount(), is(1L));
+		assertEquals(1, cache.footprint().valueCount());
+	}
+
+	@Test
+	public void footprint_keyCascadeWithSizers_intermediateKeysNeverPassedToKeySizer() throws Exception {
+		KeyCascade<String, String> cascade = KeyCascade.<String, String>of(token -> "session-" + token.charAt(0))
+			.then(sessionId -> "user");
+
+		AsyncMultikeyCache<String, String, Integer> cache = AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder())
+			.keyMapper(cascade)
+			.valueLoader((token, userId) -> token.length())
+			.footprintSizers(key -> 100L * key.length(), derivedKey -> 50, value -> 1000)
+			.buildAsync();
+
+		for (String token : Arrays.asList("a1", "a2", "b1")) {
+			assertEquals(Integer.valueOf(2), cache.get(token).get(5, TimeUnit.SECONDS));
+		}
+		// three tokens and two intermediate session keys, all aliases of the one user
+		Footprint footprint = cache.footprint();
+		assertEquals(5, footprint.aliasCount());
+		long stageKeySize = FootprintTracker.estimate(new KeyCascade.StageKey(1, "session-a"));
+		assertEquals(5 * FootprintTracker.ALIAS_ENTRY_OVERHEAD + 3 * 200 + 2 * stageKeySize, footprint.aliasBytes());
+
+		cache.invalidate("a1");
+		await().until(() -> cache.footprint().aliasCount(), is(0L));
+		assertEquals(0, cache.footprint().aliasBytes());
+	}
+
+	@Test
+	public void maximumFootprint_exceeded_coldestValuesEvicted() throws Exception {
+		CaffeinatedMultikeyCache<String, String, Integer> cache = (CaffeinatedMultikeyCache<String, String, Integer>)
+			AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder()
+				.maximumSize(1000))
+				.keyMapper(String::toUpperCase)
+				.valueLoader((key, derivedKey) -> key.length())
+				.footprintSizers(key -> 100, derivedKey -> 100, value -> 10_000)
+				.maximumFootprint(100_000)
+				.executor(Runnable::run)
+				.buildAsync();
+
+		for (int i = 0; i < 100; i++) {
+			cache.get("key-" + i).get(5, TimeUnit.SECONDS);
+		}
+		cache.cache.synchronous().cleanUp();
+		assertTrue(cache.footprint().totalBytes() <= 100_000);
+		assertTrue(cache.footprint().valueCount() >= 5);
+		assertTrue(cache.cache.synchronous().policy().eviction().get().getMaximum() < 1000);
+	}
+
+	@Test
+	public void maximumFootprint_underBudget_capAdjustedOnExecutorOnlyOnDrift() {
+		Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		CaffeinatedMultikeyCache<String, String, Integer> cache = (CaffeinatedMultikeyCache<String, String, Integer>)
+			AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder()
+				.maximumSize(1000))
+				.footprintSizers(key -> 100, derivedKey -> 100, value -> 1000)
+				.maximumFootprint(1_000_000)
+				.executor(tasks::add)
+				.buildAsync();
+		Policy.Eviction<String, Integer> eviction = cache.cache.synchronous().policy().eviction().get();
+
+		for (int i = 0; i < 100; i++) {
+			cache.put("KEY-" + i, i);
+		}
+		// never adjusted on the calling thread
+		assertEquals(1000, eviction.getMaximum());
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			task.run();
+		}
+		long cap = 100 * 1_000_000 / (100 * (FootprintTracker.VALUE_ENTRY_OVERHEAD + 1100));
+		assertEquals(cap, eviction.getMaximum());
+
+		// the per-value footprint is unchanged, so the cap has not drifted
+		for (int i = 100; i < 200; i++) {
+			cache.put("KEY-" + i, i);
+		}
+		while ((task = tasks.poll()) != null) {
+			task.run();
+		}
+		assertEquals(cap, eviction.getMaximum());
+	}
+
+	@Test
+	public void entries_pinnedAndCached_streamedWithAliasesInParallel() throws Exception {
+		AsyncMultikeyCache<String, String, Integer> cache = AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder())
+			.keyMapper(String::toUpperCase)
+			.valueLoader((key, derivedKey) -> key.length())
+			.pinningPredicate((derivedKey, value) -> derivedKey.startsWith("SYS"))
+			.executor(Runnable::run)
+			.buildAsync();
+
+		for (String key : Arrays.asList("sys", "Sys", "a", "A", "bb")) {
+			cache.get(key).get(5, TimeUnit.SECONDS);
+		}
+		Map<String, AsyncMultikeyCache.Entry<String, String, Integer>> entries = cache.entries()
+			.collect(Collectors.toMap(AsyncMultikeyCache.Entry::derivedKey, Function.identity()));
+		assertEquals(new HashSet<>(Arrays.asList("SYS", "A", "BB")), entries.keySet());
+		assertEquals(Integer.valueOf(3), entries.get("SYS").value());
+		assertEquals(new HashSet<>(Arrays.asList("sys", "Sys")), entries.get("SYS").keys());
+		assertEquals(new HashSet<>(Arrays.asList("a", "A")), entries.get("A").keys());
+
+		for (int i = 0; i < 1000; i++) {
+			cache.get("key-" + i).get(5, TimeUnit.SECONDS);
+		}
+		assertEquals(1003L, cache.entries().parallel().count());
+		assertEquals(1000L, cache.entries().parallel().filter(entry -> entry.derivedKey().startsWith("KEY-")).count());
+	}
+
+	@Test
+	public void publishAll_valuesSignalledOnDemandThenCompleted() throws Exception {
+		AsyncMultikeyCache<String, String, Integer> cache = AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder())
+			.keyMapper(String::toUpperCase)
+			.valueLoader((key, derivedKey) -> {
+				if ("fail".equals(key)) {
+					throw new IllegalStateException("boom");
+				}
+				return key.length();
+			})
+			.buildAsync();
+
+		List<Map.Entry<String, Integer>> received = new CopyOnWriteArrayList<>();
+		AtomicReference<Subscription> subscription = new AtomicReference<>();
+		AtomicBoolean completed = new AtomicBoolean(false);
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		Subscriber<Map.Entry<String, Integer>> subscriber = new Subscriber<Map.Entry<String, Integer>>() {
+			@Override
+			public void onSubscribe(Subscription s) {
+				subscription.set(s);
+			}
+
+			@Override
+			public void onNext(Map.Entry<String, Integer> entry) {
+				received.add(entry);
+			}
+
+			@Override
+			public void onError(Throwable t) {
+				failure.set(t);
+			}
+
+			@Override
+			public void onComplete() {
+				completed.set(true);
+			}
+		};
+
+		cache.publishAll(Arrays.asList("a", "bb", "ccc")).subscribe(subscriber);
+		assertTrue(received.isEmpty());
+		subscription.get().request(2);
+		await().until(received::size, is(2));
+		assertEquals(false, completed.get());
+		subscription.get().request(Long.MAX_VALUE);
+		await().until(completed::get, is(true));
+		assertEquals(3, received.size());
+		for (Map.Entry<String, Integer> entry : received) {
+			assertEquals(Integer.valueOf(entry.getKey().length()), entry.getValue());
+		}
+		assertNull(failure.get());
+
+		completed.set(false);
+		cache.publishAll(Arrays.asList("a", "fail")).subscribe(subscriber);
+		subscription.get().request(Long.MAX_VALUE);
+		await().until(() -> failure.get() != null, is(true));
+		assertEquals(false, completed.get());
+
+		// a getter throwing instead of returning a failed future terminates the publisher alike
+		failure.set(null);
+		new BulkGetPublisher<String, Integer>(Arrays.asList("a", "sync"), key -> {
+			if ("sync".equals(key)) {
+				throw new IllegalArgumentException("rejected");
+			}
+			return cache.get(key);
+		}).subscribe(subscriber);
+		subscription.get().request(Long.MAX_VALUE);
+		await().until(() -> failure.get() instanceof IllegalArgumentException, is(true));
+		assertEquals(false, completed.get());
+	}
+
+	@Test
+	public void invalidate_loadInFlight_valueReturnedUncachedAndAliasesDiscarded() throws Exception {
+		CountDownLatch loading = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger loaderCount = new AtomicInteger(0);
+
+		CaffeinatedMultikeyCache<String, String, Integer> cache = (CaffeinatedMultikeyCache<String, String, Integer>)
+			AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder().recordStats())
+				.keyMapper(String::toUpperCase)
+				.valueLoader((key, derivedKey) -> {
+					if (loaderCount.incrementAndGet() == 1) {
+						loading.countDown();
+						try {
+							release.await(5, TimeUnit.SECONDS);
+						} catch (InterruptedException ex) {
+							throw new IllegalStateException(ex);
+						}
+					}
+					return key.length();
+				})
+				.buildAsync();
+
+		CompletableFuture<Integer> inFlight = cache.get("aaa");
+		assertTrue(loading.await(5, TimeUnit.SECONDS));
+		cache.invalidate("aaa");
+		assertNull(cache.getDerivedKeyIfPresent("aaa"));
+		release.countDown();
+
+		assertEquals(Integer.valueOf(3), inFlight.get(5, TimeUnit.SECONDS));
+		assertNull(cache.getIfPresent("aaa"));
+		assertNull(cache.getByDerivedKeyIfPresent("AAA"));
+		assertEquals(0, cache.footprint().valueCount());
+		assertEquals(0, cache.footprint().aliasCount());
+		// the obsolete load is not a failure to caffeine
+		assertEquals(0, cache.valueCache().synchronous().stats().loadFailureCount());
+
+		assertEquals(Integer.valueOf(3), cache.get("aaa").get(5, TimeUnit.SECONDS));
+		assertEquals(Integer.valueOf(3), cache.getIfPresent("aaa"));
+		assertEquals(2, loaderCount.get());
+	}
+
+	@Test
+	public void invalidate_mappingInFlight_derivedKeyInvalidatedOnCompletion() throws Exception {
+		CountDownLatch mapping = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		List<Set<String>> removed = new CopyOnWriteArrayList<>();
+
+		AsyncMultikeyCache<String, String, Integer> cache = AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder())
+			.valueLoader((key, derivedKey) -> key.length())
+			.removalListener((keys, value, cause) -> removed.add(keys))
+			.buildAsync();
+
+		assertEquals(Integer.valueOf(3), cache.get("aAa", String::toUpperCase, (key, derivedKey) -> key.length()).get(5, TimeUnit.SECONDS));
+
+		CompletableFuture<Integer> inFlight = cache.get("aaa", key -> {
+			mapping.countDown();
+			try {
+				release.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException ex) {
+				throw new IllegalStateException(ex);
+			}
+			return key.toUpperCase();
+		}, (key, derivedKey) -> key.length());
+		assertTrue(mapping.await(5, TimeUnit.SECONDS));
+		cache.invalidate("aaa");
+		release.countDown();
+
+		assertEquals(Integer.valueOf(3), inFlight.get(5, TimeUnit.SECONDS));
+		await().until(() -> cache.getIfPresent("aAa") == null, is(true));
+		assertNull(cache.getDerivedKeyIfPresent("aaa"));
+		assertNull(cache.getByDerivedKeyIfPresent("AAA"));
+		await().until(removed::size, is(1));
+		assertTrue(removed.get(0).contains("aAa"));
+	}
 }
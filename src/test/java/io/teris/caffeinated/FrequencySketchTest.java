@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+public class FrequencySketchTest {
+
+	@Test
+	public void increment_countedUpToMaximum() {
+		FrequencySketch sketch = new FrequencySketch(512);
+		assertEquals(0, sketch.frequency("aaa"));
+		for (int i = 1; i <= 20; i++) {
+			assertEquals(Math.min(i, 15), sketch.increment("aaa"));
+		}
+		assertEquals(15, sketch.frequency("aaa"));
+	}
+
+	@Test
+	public void increment_beyondSampleSize_countersHalved() {
+		FrequencySketch sketch = new FrequencySketch(16);
+		for (int i = 0; i < 8; i++) {
+			sketch.increment("hot");
+		}
+		// 160 increments in total trigger a reset
+		for (int i = 0; i < 152; i++) {
+			sketch.increment(Integer.valueOf(i));
+		}
+		assertTrue(sketch.frequency("hot") <= 4);
+		assertTrue(sketch.frequency("hot") >= 3);
+	}
+}
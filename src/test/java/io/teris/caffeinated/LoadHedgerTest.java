@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.Assert.assertEquals;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+
+public class LoadHedgerTest {
+
+	@Test
+	public void load_hedgedAttemptsWin_onlyPrimaryLatencyRecorded() throws Exception {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		try {
+			LoadHedger hedger = new LoadHedger(HedgingPolicy.percentile(10, Duration.ofMillis(5)), executor, () -> scheduler);
+			List<CompletableFuture<Integer>> loads = new ArrayList<>();
+			for (int i = 0; i < LoadHedger.RECOMPUTE_EVERY; i++) {
+				AtomicBoolean primary = new AtomicBoolean(true);
+				loads.add(hedger.load(() -> {
+					if (primary.getAndSet(false)) {
+						sleep(100);
+						return 1;
+					}
+					return 2;
+				}));
+			}
+			for (CompletableFuture<Integer> load : loads) {
+				assertEquals(Integer.valueOf(2), load.get(5, TimeUnit.SECONDS));
+			}
+			// the fast hedged wins do not pull the delay below the primary latency
+			await().atMost(5, TimeUnit.SECONDS).until(() -> hedger.delayNanos() >= TimeUnit.MILLISECONDS.toNanos(100));
+		} finally {
+			executor.shutdownNow();
+			scheduler.shutdownNow();
+		}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+}
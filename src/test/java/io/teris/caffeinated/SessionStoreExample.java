@@ -14,6 +14,7 @@ import java.util.Base64;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
@@ -50,21 +51,19 @@ public class SessionStoreExample {
 
 	static class SessionStoreBackedAuthenticationService implements AuthenticationService {
 
-		private final UserResolutionDAO userDao = new DummyUserResolutionDAO();
+		private final UserResolutionDAO userDao;
 
-		private final AuthenticationDAO authDao = new DummyAuthenticationDAO(userDao);
+		private final AuthenticationDAO authDao;
 
 		private final AsyncMultikeyCache<String, String, Session> sessionStore;
 
 		SessionStoreBackedAuthenticationService() {
-			sessionStore =
-				AsyncMultikeyCache.<String, String, Session>newBuilder(Caffeine.newBuilder()
-					.expireAfterAccess(5, TimeUnit.SECONDS))
-					.removalListener((keys, session, reason) -> session.expire())
-					.buildAsync();
+			this((keys, session, reason) -> session.expire());
 		}
 
 		SessionStoreBackedAuthenticationService(RemovalListener<Set<String>, Session> removalListener) {
+			userDao = new DummyUserResolutionDAO();
+			authDao = new DummyAuthenticationDAO(userDao);
 			sessionStore =
 				AsyncMultikeyCache.<String, String, Session>newBuilder(Caffeine.newBuilder()
 					.expireAfterAccess(5, TimeUnit.SECONDS))
@@ -72,6 +71,16 @@ public class SessionStoreExample {
 					.buildAsync();
 		}
 
+		SessionStoreBackedAuthenticationService(UserResolutionDAO userDao, AuthenticationDAO authDao, Caffeine<Object, Object> caffeine, Executor executor) {
+			this.userDao = userDao;
+			this.authDao = authDao;
+			sessionStore =
+				AsyncMultikeyCache.<String, String, Session>newBuilder(caffeine)
+					.removalListener((keys, session, reason) -> session.expire())
+					.executor(executor)
+					.buildAsync();
+		}
+
 		@Override
 		public CompletableFuture<String> authByUsername(Context context, String username, String password) {
 			String key = Base64.getEncoder().encodeToString((username + ":" + password).getBytes());
@@ -128,6 +137,10 @@ public class SessionStoreExample {
 		public CompletableFuture<Void> logout(Context context, String sessionId) {
 			return CompletableFuture.runAsync(() -> sessionStore.invalidate(sessionId));
 		}
+
+		void close() {
+			sessionStore.close();
+		}
 	}
 
 	@Rule
@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated;
+
+import java.io.PrintStream;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.teris.caffeinated.SessionStoreExample.Context;
+import io.teris.caffeinated.SessionStoreExample.SessionStoreBackedAuthenticationService;
+import io.teris.caffeinated.fixture.dao.DummyAuthenticationDAO;
+import io.teris.caffeinated.fixture.dao.DummyUserResolutionDAO;
+import io.teris.caffeinated.fixture.dao.SimulatedAuthenticationDAO;
+import io.teris.caffeinated.fixture.dao.SimulatedBackend;
+import io.teris.caffeinated.fixture.dao.SimulatedUserResolutionDAO;
+
+
+/**
+ * SessionStoreLoadHarness drives the session store example with an open-loop mix of
+ * logins by username and API key, session lookups and logouts against a simulated
+ * backend with log-normal latency and random failures, and reports latency percentiles
+ * per operation and the achieved throughput.
+ * <p>
+ * Requests are issued at their intended times at a fixed rate irrespective of how many
+ * are still outstanding, and latency is measured from the intended rather than the actual
+ * start of a request, so that stalls of the harness itself are not hidden (coordinated
+ * omission). Lookups and logouts pick a random user and fall back to a login by username
+ * while the user has no session, which skews the mix towards logins during the warm-up.
+ * <p>
+ * Usage: {@code SessionStoreLoadHarness [--rate=1000] [--duration=PT30S] [--warmup=PT5S]
+ * [--users=10000] [--latency-median=PT0.005S] [--latency-p99=PT0.05S] [--failure-rate=0]
+ * [--threads=64] [--maximum-size=0] [--expire-after-access=PT5M]
+ * [--mix=login:10,apikey:5,lookup:80,logout:5] [--max-p99=PT0.1S] [--min-throughput=0]},
+ * where 0 stands for an unbounded size and no expiry; the process exits with 1 if the
+ * overall 99th percentile or the throughput violate the given limits.
+ */
+public final class SessionStoreLoadHarness {
+
+	enum Operation {
+		LOGIN, API_KEY_LOGIN, LOOKUP, LOGOUT
+	}
+
+	static final class Options {
+
+		int rate = 1000;
+
+		Duration duration = Duration.ofSeconds(30);
+
+		Duration warmup = Duration.ofSeconds(5);
+
+		int users = 10_000;
+
+		Duration latencyMedian = Duration.ofMillis(5);
+
+		Duration latencyP99 = Duration.ofMillis(50);
+
+		double failureRate = 0.0;
+
+		int threads = 64;
+
+		long maximumSize = 0;
+
+		Duration expireAfterAccess = Duration.ofMinutes(5);
+
+		Map<Operation, Integer> mix = parseMix("login:10,apikey:5,lookup:80,logout:5");
+
+		Duration maxP99 = null;
+
+		double minThroughput = 0.0;
+
+		static Options parse(String[] args) {
+			Map<String, String> options = new HashMap<>();
+			for (String arg : args) {
+				String[] parts = arg.replaceFirst("^--", "").split("=", 2);
+				options.put(parts[0], parts.length > 1 ? parts[1] : "");
+			}
+			Options res = new Options();
+			res.rate = Integer.parseInt(options.getOrDefault("rate", String.valueOf(res.rate)));
+			res.duration = Duration.parse(options.getOrDefault("duration", res.duration.toString()));
+			res.warmup = Duration.parse(options.getOrDefault("warmup", res.warmup.toString()));
+			res.users = Integer.parseInt(options.getOrDefault("users", String.valueOf(res.users)));
+			res.latencyMedian = Duration.parse(options.getOrDefault("latency-median", res.latencyMedian.toString()));
+			res.latencyP99 = Duration.parse(options.getOrDefault("latency-p99", res.latencyP99.toString()));
+			res.failureRate = Double.parseDouble(options.getOrDefault("failure-rate", String.valueOf(res.failureRate)));
+			res.threads = Integer.parseInt(options.getOrDefault("threads", String.valueOf(res.threads)));
+			res.maximumSize = Long.parseLong(options.getOrDefault("maximum-size", String.valueOf(res.maximumSize)));
+			String expiry = options.getOrDefault("expire-after-access", res.expireAfterAccess.toString());
+			res.expireAfterAccess = "0".equals(expiry) ? Duration.ZERO : Duration.parse(expiry);
+			if (options.containsKey("mix")) {
+				res.mix = parseMix(options.get("mix"));
+			}
+			if (options.containsKey("max-p99")) {
+				res.maxP99 = Duration.parse(options.get("max-p99"));
+			}
+			res.minThroughput = Double.parseDouble(options.getOrDefault("min-throughput", String.valueOf(res.minThroughput)));
+			return res;
+		}
+
+		private static Map<Operation, Integer> parseMix(String value) {
+			Map<Operation, Integer> res = new EnumMap<>(Operation.class);
+			Arrays.stream(value.split(",")).map(String::trim).forEach(part -> {
+				String[] pair = part.split(":", 2);
+				switch (pair[0]) {
+					case "login": res.put(Operation.LOGIN, Integer.parseInt(pair[1])); break;
+					case "apikey": res.put(Operation.API_KEY_LOGIN, Integer.parseInt(pair[1])); break;
+					case "lookup": res.put(Operation.LOOKUP, Integer.parseInt(pair[1])); break;
+					case "logout": res.put(Operation.LOGOUT, Integer.parseInt(pair[1])); break;
+					default: throw new IllegalArgumentException("unknown operation " + pair[0]);
+				}
+			});
+			return res;
+		}
+	}
+
+	/**
+	 * The outcome of a load run over the measured period, after the warm-up.
+	 */
+	static final class Report {
+
+		final Map<Operation, Histogram> latencies = new EnumMap<>(Operation.class);
+
+		final Map<Operation, Histogram> serviceTimes = new EnumMap<>(Operation.class);
+
+		final Map<Operation, AtomicLong> failures = new EnumMap<>(Operation.class);
+
+		final Duration duration;
+
+		long incomplete = 0;
+
+		long backendCalls = 0;
+
+		Report(Duration duration) {
+			this.duration = duration;
+			for (Operation operation : Operation.values()) {
+				latencies.put(operation, new ConcurrentHistogram(3));
+				serviceTimes.put(operation, new ConcurrentHistogram(3));
+				failures.put(operation, new AtomicLong());
+			}
+		}
+
+		Histogram latency() {
+			Histogram res = new Histogram(3);
+			latencies.values().forEach(res::add);
+			return res;
+		}
+
+		long failureCount() {
+			return failures.values().stream().mapToLong(AtomicLong::get).sum();
+		}
+
+		double throughput() {
+			return latency().getTotalCount() * 1e9 / duration.toNanos();
+		}
+
+		void print(PrintStream out) {
+			out.printf("%14s %10s %10s %10s %10s %10s %10s %10s %12s%n",
+				"operation", "requests", "failures", "p50-ms", "p90-ms", "p99-ms", "p99.9-ms", "max-ms", "svc-p99-ms");
+			for (Operation operation : Operation.values()) {
+				print(out, operation.name().toLowerCase(), latencies.get(operation), serviceTimes.get(operation),
+					failures.get(operation).get());
+			}
+			Histogram serviceTime = new Histogram(3);
+			serviceTimes.values().forEach(serviceTime::add);
+			print(out, "all", latency(), serviceTime, failureCount());
+			out.printf("throughput: %.1f req/s, incomplete: %d, backend calls: %d%n", throughput(), incomplete, backendCalls);
+		}
+
+		private static void print(PrintStream out, String name, Histogram latency, Histogram serviceTime, long failures) {
+			out.printf("%14s %10d %10d %10.2f %10.2f %10.2f %10.2f %10.2f %12.2f%n", name, latency.getTotalCount(), failures,
+				latency.getValueAtPercentile(50) / 1e6, latency.getValueAtPercentile(90) / 1e6,
+				latency.getValueAtPercentile(99) / 1e6, latency.getValueAtPercentile(99.9) / 1e6, latency.getMaxValue() / 1e6,
+				serviceTime.getValueAtPercentile(99) / 1e6);
+		}
+	}
+
+	private static final Duration DRAIN_TIMEOUT = Duration.ofSeconds(30);
+
+	// injected failures would otherwise be logged by Caffeine for every failed load
+	private static final Logger CAFFEINE_LOGGER = Logger.getLogger("com.github.benmanes.caffeine");
+
+	private SessionStoreLoadHarness() {}
+
+	/**
+	 * Runs the load test with the users registered and the caffeine logging muted for its
+	 * duration only, so that other tests in the same JVM are not affected.
+	 */
+	static Report run(Options options) {
+		Level caffeineLevel = CAFFEINE_LOGGER.getLevel();
+		CAFFEINE_LOGGER.setLevel(Level.SEVERE);
+		String[] apiKeys = new String[options.users];
+		try {
+			for (int i = 0; i < options.users; i++) {
+				apiKeys[i] = SimulatedBackend.registerUser("user-" + i, "password-" + i);
+			}
+			return run(options, apiKeys);
+		} finally {
+			for (int i = 0; i < options.users; i++) {
+				SimulatedBackend.unregisterUser("user-" + i, "password-" + i);
+			}
+			CAFFEINE_LOGGER.setLevel(caffeineLevel);
+		}
+	}
+
+	private static Report run(Options options, String[] apiKeys) {
+		SimulatedBackend backend = new SimulatedBackend(options.latencyMedian, options.latencyP99, options.failureRate);
+		DummyUserResolutionDAO dummyUserDao = new DummyUserResolutionDAO();
+		dummyUserDao.dbAccessLatencyMs = 0;
+		DummyAuthenticationDAO dummyAuthDao = new DummyAuthenticationDAO(dummyUserDao);
+		dummyAuthDao.dbAccessLatencyMs = 0;
+
+		Caffeine<Object, Object> caffeine = Caffeine.newBuilder();
+		if (options.maximumSize > 0) {
+			caffeine.maximumSize(options.maximumSize);
+		}
+		if (!options.expireAfterAccess.isZero()) {
+			caffeine.expireAfterAccess(options.expireAfterAccess);
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(options.threads, runnable -> {
+			Thread thread = new Thread(runnable, "load-backend");
+			thread.setDaemon(true);
+			return thread;
+		});
+		SessionStoreBackedAuthenticationService service = new SessionStoreBackedAuthenticationService(
+			new SimulatedUserResolutionDAO(dummyUserDao, backend), new SimulatedAuthenticationDAO(dummyAuthDao, backend),
+			caffeine, executor);
+
+		Operation[] operations = weighted(options.mix);
+		if (operations.length == 0) {
+			throw new IllegalArgumentException("operation mix must not be empty");
+		}
+		AtomicReferenceArray<String> sessions = new AtomicReferenceArray<>(options.users);
+		AtomicLong outstanding = new AtomicLong();
+		Context context = new Context();
+		Report res = new Report(options.duration);
+
+		long interval = 1_000_000_000L / options.rate;
+		long start = System.nanoTime();
+		long measureFrom = start + options.warmup.toNanos();
+		long end = measureFrom + options.duration.toNanos();
+		try {
+			for (long intended = start; intended < end; intended += interval) {
+				for (long delay = intended - System.nanoTime(); delay > 0; delay = intended - System.nanoTime()) {
+					LockSupport.parkNanos(delay);
+				}
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				int user = random.nextInt(options.users);
+				Operation operation = operations[random.nextInt(operations.length)];
+				String sessionId = operation == Operation.LOOKUP ? sessions.get(user)
+					: operation == Operation.LOGOUT ? sessions.getAndSet(user, null) : null;
+				if (sessionId == null && (operation == Operation.LOOKUP || operation == Operation.LOGOUT)) {
+					operation = Operation.LOGIN;
+				}
+
+				long intendedStart = intended;
+				long dispatched = System.nanoTime();
+				Operation measured = intended >= measureFrom ? operation : null;
+				outstanding.incrementAndGet();
+				CompletableFuture<?> future;
+				try {
+					future = issue(service, context, operation, user, apiKeys[user], sessionId, sessions);
+				} catch (RuntimeException ex) {
+					CompletableFuture<Void> failed = new CompletableFuture<>();
+					failed.completeExceptionally(ex);
+					future = failed;
+				}
+				future.whenComplete(($, t) -> {
+					long now = System.nanoTime();
+					if (measured != null) {
+						res.latencies.get(measured).recordValue(now - intendedStart);
+						res.serviceTimes.get(measured).recordValue(now - dispatched);
+						if (t != null) {
+							res.failures.get(measured).incrementAndGet();
+						}
+					}
+					outstanding.decrementAndGet();
+				});
+			}
+			long deadline = System.nanoTime() + DRAIN_TIMEOUT.toNanos();
+			while (outstanding.get() > 0 && System.nanoTime() < deadline) {
+				LockSupport.parkNanos(1_000_000L);
+			}
+			res.incomplete = outstanding.get();
+			res.backendCalls = backend.callCount.get();
+			return res;
+		} finally {
+			service.close();
+			executor.shutdownNow();
+		}
+	}
+
+	private static CompletableFuture<?> issue(SessionStoreBackedAuthenticationService service, Context context, Operation operation,
+		int user, String apiKey, String sessionId, AtomicReferenceArray<String> sessions) {
+		switch (operation) {
+			case LOGIN:
+				return service.authByUsername(context, "user-" + user, "password-" + user)
+					.thenAccept(res -> sessions.set(user, res));
+			case API_KEY_LOGIN:
+				return service.authByApiKey(context, apiKey)
+					.thenAccept(res -> sessions.set(user, res));
+			case LOOKUP:
+				return service.getSessionById(context, sessionId);
+			default:
+				return service.logout(context, sessionId);
+		}
+	}
+
+	private static Operation[] weighted(Map<Operation, Integer> mix) {
+		return mix.entrySet().stream()
+			.flatMap(entry -> Collections.nCopies(entry.getValue(), entry.getKey()).stream())
+			.toArray(Operation[]::new);
+	}
+
+	public static void main(String[] args) {
+		Options options = Options.parse(args);
+		Report report = run(options);
+		report.print(System.out);
+
+		long p99 = report.latency().getValueAtPercentile(99);
+		if (options.maxP99 != null && p99 > options.maxP99.toNanos()) {
+			System.err.printf("p99 latency %.2f ms exceeds %.2f ms%n", p99 / 1e6, options.maxP99.toNanos() / 1e6);
+			System.exit(1);
+		}
+		if (report.throughput() < options.minThroughput) {
+			System.err.printf("throughput %.1f req/s below %.1f req/s%n", report.throughput(), options.minThroughput);
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+import io.teris.caffeinated.SessionStoreLoadHarness.Operation;
+
+
+public class SessionStoreLoadHarnessTest {
+
+	@Test
+	public void run_shortOpenLoop_allIntendedRequestsMeasured() {
+		SessionStoreLoadHarness.Options options = SessionStoreLoadHarness.Options.parse(new String[]{
+			"--rate=500", "--duration=PT1S", "--warmup=PT0.2S", "--users=100", "--threads=8",
+			"--latency-median=PT0.001S", "--latency-p99=PT0.005S", "--failure-rate=0.1"});
+
+		Level caffeineLevel = Logger.getLogger("com.github.benmanes.caffeine").getLevel();
+		SessionStoreLoadHarness.Report report = SessionStoreLoadHarness.run(options);
+		assertEquals(caffeineLevel, Logger.getLogger("com.github.benmanes.caffeine").getLevel());
+
+		assertEquals(500L, report.latency().getTotalCount());
+		assertEquals(0L, report.incomplete);
+		assertTrue(report.backendCalls > 0);
+		// injected backend failures surface as failed logins
+		assertTrue(report.failures.get(Operation.LOGIN).get() > 0);
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+
+public class TimerWheelTest {
+
+	@Test
+	public void advance_deadlinesAcrossLevels_dueInOrderAndNeverEarly() {
+		long start = TimeUnit.DAYS.toNanos(3) + 12345;
+		TimerWheel<Long> wheel = new TimerWheel<>(start);
+		List<Long> delays = Arrays.asList(
+			TimeUnit.MILLISECONDS.toNanos(10), TimeUnit.SECONDS.toNanos(3), TimeUnit.MINUTES.toNanos(2),
+			TimeUnit.HOURS.toNanos(1), TimeUnit.DAYS.toNanos(2), TimeUnit.DAYS.toNanos(40));
+		delays.forEach(delay -> wheel.schedule(delay, start + delay));
+		assertEquals(6, wheel.size());
+
+		List<Long> due = new ArrayList<>();
+		long step = TimeUnit.MILLISECONDS.toNanos(50);
+		for (long now = start; now <= start + TimeUnit.DAYS.toNanos(41); now += now - start < TimeUnit.MINUTES.toNanos(5) ? step : TimeUnit.SECONDS.toNanos(30)) {
+			for (Long delay : wheel.advance(now)) {
+				assertTrue("due early: " + delay, now - start >= delay);
+				due.add(delay);
+			}
+		}
+		assertEquals(delays, due);
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void schedule_rescheduledAndDescheduled_onlyLatestScheduleFires() {
+		TimerWheel<String> wheel = new TimerWheel<>(0);
+		wheel.schedule("a", TimeUnit.MILLISECONDS.toNanos(100));
+		wheel.schedule("b", TimeUnit.MILLISECONDS.toNanos(100));
+		wheel.schedule("a", TimeUnit.SECONDS.toNanos(10));
+		wheel.deschedule("b");
+
+		assertEquals(Collections.emptyList(), wheel.advance(TimeUnit.SECONDS.toNanos(1)));
+		assertEquals(Collections.singletonList("a"), wheel.advance(TimeUnit.SECONDS.toNanos(11)));
+	}
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated.fixture.dao;
+
+import io.teris.caffeinated.fixture.entity.Session;
+
+
+public class SimulatedAuthenticationDAO implements AuthenticationDAO {
+
+	private final AuthenticationDAO delegate;
+
+	private final SimulatedBackend backend;
+
+	public SimulatedAuthenticationDAO(AuthenticationDAO delegate, SimulatedBackend backend) {
+		this.delegate = delegate;
+		this.backend = backend;
+	}
+
+	@Override
+	public void validateUsernameAuth(String username, String password) {
+		backend.call();
+		delegate.validateUsernameAuth(username, password);
+	}
+
+	@Override
+	public Session authByUsername(String username, String password) {
+		backend.call();
+		return delegate.authByUsername(username, password);
+	}
+
+	@Override
+	public void validateApiKeyAuth(String apiKey) {
+		backend.call();
+		delegate.validateApiKeyAuth(apiKey);
+	}
+
+	@Override
+	public Session authByApiKey(String apiKey) {
+		backend.call();
+		return delegate.authByApiKey(apiKey);
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated.fixture.dao;
+
+import java.time.Duration;
+import java.util.Base64;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Simulates the latency and failures of a backend: every call is delayed by a log-normal
+ * latency defined by its median and 99th percentile and fails with the given probability.
+ */
+public class SimulatedBackend {
+
+	private static final double Z_99 = 2.326;
+
+	private final long medianNanos;
+
+	private final double sigma;
+
+	private final double failureRate;
+
+	public final AtomicLong callCount = new AtomicLong();
+
+	public final AtomicLong failureCount = new AtomicLong();
+
+	public SimulatedBackend(Duration median, Duration p99, double failureRate) {
+		if (p99.compareTo(median) < 0) {
+			throw new IllegalArgumentException("99th percentile must not be below the median");
+		}
+		this.medianNanos = median.toNanos();
+		this.sigma = medianNanos > 0 ? Math.log((double) p99.toNanos() / medianNanos) / Z_99 : 0.0;
+		this.failureRate = failureRate;
+	}
+
+	public void call() {
+		callCount.incrementAndGet();
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		if (medianNanos > 0) {
+			LockSupport.parkNanos((long) (medianNanos * Math.exp(sigma * random.nextGaussian())));
+		}
+		if (failureRate > 0 && random.nextDouble() < failureRate) {
+			failureCount.incrementAndGet();
+			throw new IllegalStateException("simulated backend failure");
+		}
+	}
+
+	/**
+	 * Registers a user with the dummy DAOs.
+	 *
+	 * @return the API key of the user
+	 */
+	public static String registerUser(String username, String password) {
+		DummyState.users.add(credentials(username, password));
+		String res = apiKey(username, password);
+		DummyState.keys.add(res);
+		return res;
+	}
+
+	/**
+	 * Removes a user registered with the dummy DAOs.
+	 */
+	public static void unregisterUser(String username, String password) {
+		DummyState.users.remove(credentials(username, password));
+		DummyState.keys.remove(apiKey(username, password));
+	}
+
+	private static String credentials(String username, String password) {
+		return Base64.getEncoder().encodeToString((username + ":" + password).getBytes());
+	}
+
+	private static String apiKey(String username, String password) {
+		return Base64.getEncoder().encodeToString((username + ":key-" + password).getBytes());
+	}
+}
@@ -0,0 +1,23 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated.fixture.dao;
+
+public class SimulatedUserResolutionDAO implements UserResolutionDAO {
+
+	private final UserResolutionDAO delegate;
+
+	private final SimulatedBackend backend;
+
+	public SimulatedUserResolutionDAO(UserResolutionDAO delegate, SimulatedBackend backend) {
+		this.delegate = delegate;
+		this.backend = backend;
+	}
+
+	@Override
+	public String resolveForApiKey(String apiKey) {
+		backend.call();
+		return delegate.resolveForApiKey(apiKey);
+	}
+}
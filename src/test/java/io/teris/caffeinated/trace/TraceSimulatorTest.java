@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) teris.io & Oleg Sklyar, 2018. All rights reserved
+ */
+
+package io.teris.caffeinated.trace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.teris.caffeinated.AsyncMultikeyCache;
+
+
+public class TraceSimulatorTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void recordCacheTraffic_readBack_accessesAndLoadsRecorded() throws Exception {
+		Path file = folder.newFile("trace.bin").toPath();
+
+		try (TraceRecorder recorder = TraceRecorder.open(file, 1024)) {
+			AsyncMultikeyCache<String, String, Integer> cache = AsyncMultikeyCache.<String, String, Integer>newBuilder(Caffeine.newBuilder())
+				.traceRecorder(recorder)
+				.buildAsync();
+			List<CompletableFuture<Integer>> futures = new ArrayList<>();
+			for (String key : new String[]{"aaa", "aAa", "bbb", "aaa"}) {
+				futures.add(cache.get(key, String::toUpperCase, (primaryKey, derivedKey) -> primaryKey.length()));
+			}
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+			assertEquals(0, recorder.droppedCount());
+		}
+
+		int accesses = 0;
+		int loads = 0;
+		try (TraceReader reader = TraceReader.open(file)) {
+			for (TraceEvent event = reader.next(); event != null; event = reader.next()) {
+				if (event.type() == TraceEvent.Type.ACCESS) {
+					accesses++;
+				} else if (event.type() == TraceEvent.Type.LOAD) {
+					loads++;
+				}
+			}
+			assertNull(reader.next());
+		}
+		assertEquals(4, accesses);
+		assertEquals(2, loads);
+	}
+
+	@Test
+	public void simulate_boundedAndUnbounded_hitRatesReflectCapacity() throws Exception {
+		Path file = folder.newFile("trace.bin").toPath();
+		try (TraceRecorder recorder = TraceRecorder.open(file)) {
+			// cyclic scan over 100 derived keys with 2 aliases each
+			for (int round = 0; round < 10; round++) {
+				for (int i = 0; i < 100; i++) {
+					recorder.recordAccess("key-" + i + "-" + (round % 2), "derived-" + i);
+				}
+			}
+		}
+
+		TraceSimulator.Result unbounded = TraceSimulator.simulate(file, 0, Duration.ZERO, 0, 512, 128);
+		assertEquals(1000, unbounded.requests);
+		assertEquals(100, unbounded.loads);
+		assertEquals(800, unbounded.aliasHits);
+		assertEquals(100 * 512 + 200 * 128, unbounded.peakBytes);
+
+		TraceSimulator.Result bounded = TraceSimulator.simulate(file, 10, Duration.ZERO, 0, 512, 128);
+		assertTrue(bounded.hitRate() < unbounded.hitRate());
+		assertTrue(bounded.peakBytes < unbounded.peakBytes);
+	}
+
+	@Test
+	public void recordSameKeys_twoRecordings_hashesConsistentWithinRecordingOnly() throws Exception {
+		List<List<Long>> recordings = new ArrayList<>();
+		for (int i = 0; i < 2; i++) {
+			Path file = folder.newFile("trace-" + i + ".bin").toPath();
+			try (TraceRecorder recorder = TraceRecorder.open(file)) {
+				recorder.recordAccess("dXNlcjpwYXNzd29yZA==", "session-1");
+				recorder.recordAccess("dXNlcjpwYXNzd29yZA==", "session-1");
+			}
+			List<Long> hashes = new ArrayList<>();
+			try (TraceReader reader = TraceReader.open(file)) {
+				for (TraceEvent event = reader.next(); event != null; event = reader.next()) {
+					hashes.add(event.keyHash());
+					hashes.add(event.derivedKeyHash());
+				}
+			}
+			assertEquals(hashes.get(0), hashes.get(2));
+			assertEquals(hashes.get(1), hashes.get(3));
+			recordings.add(hashes);
+		}
+		assertNotEquals(recordings.get(0).get(0), recordings.get(1).get(0));
+		assertNotEquals(recordings.get(0).get(1), recordings.get(1).get(1));
+	}
+}